@@ -182,7 +182,17 @@ public class GifDecoder {
             }
         }
 
-        // copy each source line to the appropriate place in the destination
+        drawPixels(pixels, dest);
+    }
+
+    /** Copies each source line of the current frame to the appropriate place
+     * in the destination, skipping transparent pixels.
+     *
+     * @param source
+     *            byte array of color indices of the current frame
+     * @param dest
+     *            int array of the full image, packed ARGB */
+    protected void drawPixels(byte[] source, int[] dest) {
         int pass = 1;
         int inc = 8;
         int iline = 0;
@@ -218,7 +228,7 @@ public class GifDecoder {
                 int sx = i * iw; // start of line in source
                 while (dx < dlim) {
                     // map color and insert in destination
-                    int index = (pixels[sx++]) & 0xff;
+                    int index = (source[sx++]) & 0xff;
                     int c = act[index];
                     if (c != 0) {
                         dest[dx] = c;
@@ -30,6 +30,7 @@ import net.minecraftforge.server.permission.nodes.PermissionNode;
 import net.minecraftforge.server.permission.nodes.PermissionTypes;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.teacon.slides.cache.ImageCache;
 import org.teacon.slides.projector.*;
 import org.teacon.slides.renderer.ProjectorRenderer;
 
@@ -120,6 +121,8 @@ public final class SlideShow {
         MenuScreens.register(Registries.MENU, ProjectorScreen::new);
         ItemBlockRenderTypes.setRenderLayer(Registries.PROJECTOR, RenderType.cutout());
         BlockEntityRenderers.register(Registries.BLOCK_ENTITY, ProjectorRenderer.INSTANCE::onCreate);
+        // start loading the cache index in background before any slide is rendered
+        ImageCache.getInstance();
     }
 
     @OnlyIn(Dist.CLIENT)
@@ -0,0 +1,720 @@
+package org.teacon.slides;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/** Class StreamingGifDecoder - Decodes frames of a GIF file on demand.
+ *
+ * Reading only parses the block structure of the file into a compact frame index
+ * (offsets, delays, disposal methods and rectangles), the LZW data is skipped. Frames
+ * are then decoded into a reusable canvas when requested, so memory usage is
+ * proportional to the canvas size instead of the canvas size times the frame count.
+ * Decoding frames in order is the cheapest, decoding an earlier frame restarts from
+ * the first frame, or from the nearest keyframe snapshot if enabled, see
+ * {@link #setSnapshotLimit(long)}.
+ *
+ * Example:
+ *
+ * <pre>
+ * {
+ *     &#64;code
+ *     StreamingGifDecoder d = new StreamingGifDecoder();
+ *     d.read(buffer);
+ *     int n = d.getFrameCount();
+ *     for (int i = 0; i < n; i++) {
+ *         int[] pixels = d.decodeFrame(i); // frame i, valid until the next call
+ *         int t = d.getDelay(i); // display duration of frame in milliseconds
+ *         // do something with pixels
+ *     }
+ * }
+ * </pre>
+ *
+ * Optionally, the color indices of decoded frames can be retained together with their
+ * color tables, which costs one byte per pixel of the frame rectangle instead of four bytes
+ * per pixel of the full canvas, and later decoding of these frames skips the LZW data.
+ * Since the LZW data of each frame is independent, frames to be retained can also be
+ * decoded concurrently ahead of time, see {@link #decodeAll(ForkJoinPool)}.
+ *
+ * The composited output is identical to {@link GifDecoder}. Instances are not thread safe. */
+
+public class StreamingGifDecoder extends GifDecoder {
+
+    // fields of each frame in the index
+    protected static final int OFFSET = 0; // position of image descriptor
+    protected static final int DELAY = 1;
+    protected static final int DISPOSE = 2;
+    protected static final int TRANSPARENCY = 3;
+    protected static final int TRANS_INDEX = 4;
+    protected static final int BG_COLOR = 5;
+    protected static final int RECT_X = 6, RECT_Y = 7, RECT_W = 8, RECT_H = 9;
+    protected static final int STRIDE = 10;
+
+    protected static final ThreadLocal<LzwTables> LZW_TABLES = ThreadLocal.withInitial(LzwTables::new);
+
+    protected ByteBufferStream stream;
+    protected int[] index = new int[STRIDE * 16]; // frame index
+
+    protected int[] canvas; // current frame
+    protected int[] previous; // previous frame
+    protected int decodedFrame = -1; // index of current frame
+
+    protected long retainLimit; // max bytes of retained frames, 0 = don't retain
+    protected long retainedBytes;
+    protected byte[][] retainedPixels; // color indices of each frame, cropped to its rect
+    protected int[][] retainedColorTables; // active color table of each frame
+
+    protected long snapshotLimit; // max bytes of keyframe snapshots, 0 = always rewind to the first frame
+    protected int snapshotInterval; // frames between keyframes, 0 = not planned yet
+    protected int[][] snapshotCanvas; // canvas after each keyframe
+    protected int[][] snapshotPrevious; // previous canvas after each keyframe
+
+    /** Indexes GIF image from buffer, frames are decoded later from the buffer.
+     *
+     * @param buffer
+     *            ByteBuffer containing GIF file, its position is left unchanged,
+     *            and it must not be modified during the lifetime of this decoder.
+     * @return read status code (0 = no errors) */
+    public int read(ByteBuffer buffer) {
+        init();
+        decodedFrame = -1;
+        retainedBytes = 0;
+        retainedPixels = null;
+        retainedColorTables = null;
+        snapshotInterval = 0;
+        snapshotCanvas = null;
+        snapshotPrevious = null;
+        stream = new ByteBufferStream(buffer.duplicate());
+        in = stream;
+        readHeader();
+        if (!err()) {
+            readContents();
+        }
+        return status;
+    }
+
+    /** Retains color indices of decoded frames, until the total size reaches the limit.
+     *
+     * @param limit
+     *            max bytes of retained frames */
+    public void setRetainLimit(long limit) {
+        retainLimit = limit;
+    }
+
+    /** Gets the total size of retained frames.
+     *
+     * @return size in bytes */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /** Keeps snapshots of the canvas after keyframes, spread evenly over all frames until the
+     * total size reaches the limit, so that seeking to any frame decodes from the nearest
+     * keyframe instead of the first frame.
+     *
+     * @param limit
+     *            max bytes of snapshots */
+    public void setSnapshotLimit(long limit) {
+        snapshotLimit = limit;
+    }
+
+    /** Gets the total size of keyframe snapshots.
+     *
+     * @return size in bytes */
+    public long getSnapshotBytes() {
+        long bytes = 0;
+        if (snapshotCanvas != null) {
+            for (int[] snapshot : snapshotCanvas) {
+                if (snapshot != null) {
+                    bytes += snapshot.length * 8L; // both canvases
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /** Decodes LZW image data of frames concurrently, and retains their color indices
+     * until the total size reaches the limit. Frames are composited in order later on,
+     * which is cheap since only retained color indices have to be looked up.
+     *
+     * @param pool
+     *            the pool to decode frames, which is joined by the calling thread */
+    public void decodeAll(ForkJoinPool pool) {
+        if (err() || retainLimit <= 0) {
+            return;
+        }
+        if (retainedPixels == null) {
+            retainedPixels = new byte[frameCount][];
+            retainedColorTables = new int[frameCount][];
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        long planned = retainedBytes;
+        for (int n = 0; n < frameCount; n++) {
+            if (retainedPixels[n] == null) {
+                long npix = (long) index[n * STRIDE + RECT_W] * index[n * STRIDE + RECT_H];
+                if (planned + npix > retainLimit) {
+                    break;
+                }
+                planned += npix;
+                int frame = n;
+                tasks.add(ForkJoinTask.adapt(() -> decodeRetained(frame)));
+            }
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        retainedBytes = 0;
+        for (int n = 0; n < frameCount; n++) {
+            if (retainedPixels[n] != null) {
+                retainedBytes += retainedPixels[n].length;
+                if (retainedColorTables[n] != gct) {
+                    retainedBytes += retainedColorTables[n].length * 4L;
+                }
+            }
+        }
+    }
+
+    /** Decodes LZW image data of frame n into retained color indices, on any thread.
+     * Corrupted frames are left to {@link #decodeFrame(int)}, which reports the error. */
+    protected void decodeRetained(int n) {
+        ByteBuffer buf = stream.buffer;
+        int p = index[n * STRIDE + OFFSET] + 8; // skip image position & size
+        if (p >= buf.limit()) {
+            return;
+        }
+        int packed = buf.get(p++) & 0xff;
+        int[] table = gct;
+        if ((packed & 0x80) != 0) {
+            int ncolors = 2 << (packed & 7);
+            if (p + 3 * ncolors > buf.limit()) {
+                return;
+            }
+            table = new int[256]; // max size to avoid bounds checks
+            for (int i = 0; i < ncolors; i++, p += 3) {
+                table[i] = 0xff000000 | ((buf.get(p) & 0xff) << 16) | ((buf.get(p + 1) & 0xff) << 8) | (buf.get(p + 2) & 0xff);
+            }
+        }
+        if (table == null) {
+            return;
+        }
+        int npix = index[n * STRIDE + RECT_W] * index[n * STRIDE + RECT_H];
+        byte[] result = new byte[npix];
+        LzwTables tables = LZW_TABLES.get();
+        if (decodeImageData(buf, p, result, npix, tables.prefix, tables.suffix, tables.pixelStack) >= 0) {
+            retainedColorTables[n] = table;
+            retainedPixels[n] = result;
+        }
+    }
+
+    /** Reads GIF image from stream, which is read fully into a buffer and closed.
+     *
+     * @param is
+     *            BufferedInputStream containing GIF file.
+     * @return read status code (0 = no errors) */
+    @Override
+    public int read(BufferedInputStream is) {
+        return read((InputStream) is);
+    }
+
+    /** Reads GIF image from stream, which is read fully into a buffer and closed.
+     *
+     * @param is
+     *            InputStream containing GIF file.
+     * @return read status code (0 = no errors) */
+    @Override
+    public int read(InputStream is) {
+        if (is == null) {
+            init();
+            status = STATUS_OPEN_ERROR;
+            return status;
+        }
+        try (is) {
+            return read(ByteBuffer.wrap(is.readAllBytes()));
+        } catch (IOException e) {
+            init();
+            status = STATUS_OPEN_ERROR;
+            return status;
+        }
+    }
+
+    /** Reads GIF file from specified file/URL source
+     * (URL assumed if name contains ":/" or "file:"),
+     * files are mapped into memory instead of read.
+     *
+     * @param name
+     *            String containing source
+     * @return read status code (0 = no errors) */
+    @Override
+    public int read(String name) {
+        String lower = name.trim().toLowerCase();
+        if ((lower.indexOf("file:") >= 0) || (lower.indexOf(":/") > 0)) {
+            return super.read(name);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(name.trim()), StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            init();
+            status = STATUS_OPEN_ERROR;
+            return status;
+        }
+    }
+
+    @Override
+    public int getDelay(int n) {
+        if ((n >= 0) && (n < frameCount)) {
+            return index[n * STRIDE + DELAY];
+        }
+        return -1;
+    }
+
+    /** Gets full image width. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Gets full image height. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Decodes the image contents of frame n into a new image, prefer
+     * {@link #decodeFrame(int)} which does not allocate.
+     *
+     * @return BufferedImage representation of frame, or null if n is invalid. */
+    @Override
+    public BufferedImage getFrame(int n) {
+        int[] pixels = decodeFrame(n);
+        if (pixels == null) {
+            return null;
+        }
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        im.setRGB(0, 0, width, height, pixels, 0, width);
+        return im;
+    }
+
+    /** Decodes the image contents of frame n (and previous frames as specified
+     * by their disposition codes).
+     *
+     * @return int array of packed ARGB pixels, which is reused by the next call,
+     *         or null if n is invalid or the frame is corrupted. */
+    public int[] decodeFrame(int n) {
+        if ((n < 0) || (n >= frameCount)) {
+            return null;
+        }
+        if (canvas == null) {
+            canvas = new int[width * height];
+            previous = new int[width * height];
+            planSnapshots();
+        }
+        int keyframe = snapshotInterval > 0 ? n / snapshotInterval : 0;
+        if (keyframe > 0 && snapshotCanvas[keyframe] != null
+                && (n < decodedFrame || keyframe * snapshotInterval > decodedFrame)) {
+            // restore the nearest keyframe before, which is also a skip forward
+            System.arraycopy(snapshotCanvas[keyframe], 0, canvas, 0, canvas.length);
+            System.arraycopy(snapshotPrevious[keyframe], 0, previous, 0, previous.length);
+            decodedFrame = keyframe * snapshotInterval;
+        } else if (n < decodedFrame) {
+            decodedFrame = -1; // rewind
+        }
+        while (decodedFrame < n) {
+            decodeNextFrame();
+            if (err()) {
+                decodedFrame = -1;
+                return null;
+            }
+            takeSnapshot();
+        }
+        return canvas;
+    }
+
+    /** Spreads keyframes evenly, as many as the snapshot limit allows. */
+    protected void planSnapshots() {
+        long count = snapshotLimit / (width * height * 8L);
+        if (count <= 0 || frameCount < 2) {
+            return;
+        }
+        snapshotInterval = (int) Math.max(1, (frameCount - 1 + count - 1) / count);
+        snapshotCanvas = new int[(frameCount - 1) / snapshotInterval + 1][];
+        snapshotPrevious = new int[snapshotCanvas.length][];
+    }
+
+    /** Keeps a snapshot of the canvas if the current frame is a keyframe. */
+    protected void takeSnapshot() {
+        if (snapshotInterval > 0 && decodedFrame > 0 && decodedFrame % snapshotInterval == 0) {
+            int keyframe = decodedFrame / snapshotInterval;
+            if (snapshotCanvas[keyframe] == null) {
+                snapshotCanvas[keyframe] = canvas.clone();
+                snapshotPrevious[keyframe] = previous.clone();
+            }
+        }
+    }
+
+    /** Composites the frame after the current one onto the canvas. */
+    protected void decodeNextFrame() {
+        int n = decodedFrame + 1;
+        int f = n * STRIDE;
+        int lastDispose = n > 0 ? index[f - STRIDE + DISPOSE] : 0;
+
+        // fill in starting image contents based on last image's dispose code,
+        // the previous canvas holds the image before last, which is reused
+        int[] dest = previous;
+        if (lastDispose == 3) {
+            if (n < 2) {
+                Arrays.fill(dest, 0);
+            }
+        } else if (lastDispose > 0) {
+            System.arraycopy(canvas, 0, dest, 0, dest.length);
+            if (lastDispose == 2) {
+                // fill last image rect area with background color
+                int c = index[f + TRANSPARENCY] != 0 ? 0 : index[f - STRIDE + BG_COLOR];
+                int x0 = Math.min(index[f - STRIDE + RECT_X], width);
+                int x1 = Math.min(x0 + index[f - STRIDE + RECT_W], width);
+                int y0 = Math.min(index[f - STRIDE + RECT_Y], height);
+                int y1 = Math.min(y0 + index[f - STRIDE + RECT_H], height);
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(dest, y * width + x0, y * width + x1, c);
+                }
+            }
+        } else {
+            Arrays.fill(dest, 0);
+        }
+        previous = canvas;
+        canvas = dest;
+
+        // re-read image descriptor, and decode pixel data unless retained
+        stream.seek(index[f + OFFSET]);
+        ix = readShort();
+        iy = readShort();
+        iw = readShort();
+        ih = readShort();
+        int packed = read();
+        lctFlag = (packed & 0x80) != 0;
+        interlace = (packed & 0x40) != 0;
+        lctSize = 2 << (packed & 7);
+        byte[] source = retainedPixels != null ? retainedPixels[n] : null;
+        if (source != null) {
+            act = retainedColorTables[n];
+        } else {
+            act = lctFlag ? readColorTable(lctSize) : gct;
+            if (act == null) {
+                status = STATUS_FORMAT_ERROR;
+            }
+            if (err()) {
+                return;
+            }
+            decodeImageData();
+            if (err()) {
+                return;
+            }
+            source = pixels;
+            retainFrame(n);
+        }
+        int save = 0;
+        boolean transparent = index[f + TRANSPARENCY] != 0;
+        int transparentIndex = index[f + TRANS_INDEX];
+        if (transparent) {
+            save = act[transparentIndex];
+            act[transparentIndex] = 0; // set transparent color if specified
+        }
+
+        drawPixels(source, dest);
+
+        if (transparent) {
+            act[transparentIndex] = save;
+        }
+        decodedFrame = n;
+    }
+
+    /** Decodes LZW image data into pixel array, directly from the buffer.
+     * Same as {@link GifDecoder#decodeImageData()}, but without per-byte stream calls. */
+    @Override
+    protected void decodeImageData() {
+        int npix = iw * ih;
+
+        if ((pixels == null) || (pixels.length < npix)) {
+            pixels = new byte[npix]; // allocate new pixel array
+        }
+        if (prefix == null)
+            prefix = new short[MaxStackSize];
+        if (suffix == null)
+            suffix = new byte[MaxStackSize];
+        if (pixelStack == null)
+            pixelStack = new byte[MaxStackSize + 1];
+
+        int end = decodeImageData(stream.buffer, stream.position(), pixels, npix, prefix, suffix, pixelStack);
+        if (end < 0) {
+            status = STATUS_FORMAT_ERROR;
+        } else {
+            stream.seek(end);
+        }
+    }
+
+    /** Decodes LZW image data starting at position p of the buffer, using absolute reads
+     * only, so that frames of the same buffer can be decoded concurrently.
+     *
+     * @return position after the last data block read, or -1 if data is corrupted */
+    protected static int decodeImageData(ByteBuffer buf, int p, byte[] pixels, int npix,
+                                         short[] prefix, byte[] suffix, byte[] pixelStack) {
+        int limit = buf.limit();
+        boolean truncated = false;
+
+        //  Initialize GIF data stream decoder.
+
+        int dataSize = p < limit ? buf.get(p++) & 0xff : 0;
+        if (dataSize > 11) {
+            // code size would exceed the 12-bit limit
+            return -1;
+        }
+        int clear = 1 << dataSize;
+        int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+
+        //  Decode GIF pixel stream.
+
+        int datum = 0, bits = 0, count = 0, first = 0, top = 0, pi = 0;
+
+        while (pi < npix) {
+            if (bits < codeSize) {
+                //  Load bytes until there are enough bits for a code.
+                if (count == 0) {
+                    // Start a new data block.
+                    count = p < limit ? buf.get(p++) & 0xff : 0;
+                    if (p + count > limit) {
+                        count = limit - p;
+                        truncated = true;
+                    }
+                    if (count <= 0)
+                        break;
+                }
+                datum += (buf.get(p++) & 0xff) << bits;
+                bits += 8;
+                count--;
+                continue;
+            }
+
+            //  Get the next code.
+
+            int code = datum & codeMask;
+            datum >>= codeSize;
+            bits -= codeSize;
+
+            //  Interpret the code
+
+            if ((code > available) || (code == endOfInformation))
+                break;
+            if (code == clear) {
+                //  Reset decoder.
+                codeSize = dataSize + 1;
+                codeMask = (1 << codeSize) - 1;
+                available = clear + 2;
+                oldCode = -1;
+                continue;
+            }
+            if (oldCode == -1) {
+                pixels[pi++] = suffix[code];
+                oldCode = code;
+                first = code;
+                continue;
+            }
+            int inCode = code;
+            if (code == available) {
+                pixelStack[top++] = (byte) first;
+                code = oldCode;
+            }
+            while (code > clear) {
+                pixelStack[top++] = suffix[code];
+                code = prefix[code];
+            }
+            first = (suffix[code]) & 0xff;
+            pixelStack[top++] = (byte) first;
+
+            //  Add a new string to the string table,
+
+            if (available < MaxStackSize) {
+                prefix[available] = (short) oldCode;
+                suffix[available] = (byte) first;
+                available++;
+                if (((available & codeMask) == 0) && (available < MaxStackSize)) {
+                    codeSize++;
+                    codeMask += available;
+                }
+                oldCode = inCode;
+            }
+
+            //  Pop all pixels off the pixel stack.
+
+            while (top > 0 && pi < npix) {
+                pixels[pi++] = pixelStack[--top];
+            }
+            top = 0;
+        }
+
+        Arrays.fill(pixels, pi, npix, (byte) 0); // clear missing pixels
+
+        // leave the rest of current data block
+        return truncated ? -1 : Math.min(p + count, limit);
+    }
+
+    /** Skips variable length blocks up to and including
+     * next zero length block, without copying them. */
+    @Override
+    protected void skip() {
+        do {
+            blockSize = read();
+            if ((blockSize > 0) && (stream.skip(blockSize) < blockSize)) {
+                status = STATUS_FORMAT_ERROR;
+            }
+        } while ((blockSize > 0) && !err());
+    }
+
+    /** Retains color indices of the decoded frame n if it fits in the limit. */
+    protected void retainFrame(int n) {
+        int npix = iw * ih;
+        if (retainedBytes + npix > retainLimit) {
+            return;
+        }
+        if (retainedPixels == null) {
+            retainedPixels = new byte[frameCount][];
+            retainedColorTables = new int[frameCount][];
+        }
+        retainedPixels[n] = Arrays.copyOf(pixels, npix);
+        retainedColorTables[n] = act; // the global table is shared, local tables are never reused
+        retainedBytes += npix;
+        if (lctFlag) {
+            retainedBytes += act.length * 4L;
+        }
+    }
+
+    /** Appends the next frame to the index, and skips its image data. */
+    @Override
+    protected void readImage() {
+        int offset = stream.position();
+        int x = readShort(); // (sub)image position & size
+        int y = readShort();
+        int w = readShort();
+        int h = readShort();
+
+        int packed = read();
+        if ((packed & 0x80) != 0) {
+            // skip local color table
+            int nbytes = 3 * (2 << (packed & 7));
+            if (stream.skip(nbytes) < nbytes) {
+                status = STATUS_FORMAT_ERROR;
+            }
+        } else {
+            if (gct == null) {
+                status = STATUS_FORMAT_ERROR; // no color table defined
+            }
+            if (bgIndex == transIndex) {
+                bgColor = 0;
+            }
+        }
+
+        if (err()) {
+            return;
+        }
+
+        read(); // LZW minimum code size
+        skip(); // image data
+
+        if (err()) {
+            return;
+        }
+
+        int f = frameCount * STRIDE;
+        if (index.length < f + STRIDE) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[f + OFFSET] = offset;
+        index[f + DELAY] = delay;
+        index[f + DISPOSE] = dispose;
+        index[f + TRANSPARENCY] = transparency ? 1 : 0;
+        index[f + TRANS_INDEX] = transIndex;
+        index[f + BG_COLOR] = bgColor;
+        index[f + RECT_X] = x;
+        index[f + RECT_Y] = y;
+        index[f + RECT_W] = w;
+        index[f + RECT_H] = h;
+        frameCount++;
+    }
+
+    /** LZW decoder working arrays of each thread decoding frames concurrently. */
+    protected static final class LzwTables {
+        final short[] prefix = new short[MaxStackSize];
+        final byte[] suffix = new byte[MaxStackSize];
+        final byte[] pixelStack = new byte[MaxStackSize + 1];
+    }
+
+    /** Buffered input stream view of a byte buffer, which reads the buffer directly
+     * instead of filling an intermediate array, so its position can be tracked. */
+    protected static class ByteBufferStream extends BufferedInputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferStream(ByteBuffer buffer) {
+            super(InputStream.nullInputStream(), 1);
+            this.buffer = buffer;
+        }
+
+        public int position() {
+            return buffer.position();
+        }
+
+        public void seek(int position) {
+            buffer.position(position);
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.teacon.slides.cache;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.imageio.ImageIO;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+
+/**
+ * A resource backed by a file in the cache directory.
+ * <p>
+ * Downloaded bodies are written to a temporary file while being hashed, so the content never has
+ * to be held in memory. When the entry is stored, the temporary file is moved to its content-addressed
+ * name in place, and the resource keeps pointing at it.
+ */
+@ParametersAreNonnullByDefault
+final class CacheResource implements Resource {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BUFFER_SIZE = 1 << 16; // 64 KiB
+
+    // paths and hash codes are not serializable, which are written as a string and bytes instead
+    private transient Path path;
+    private boolean temporary;
+    @Nullable
+    private transient HashCode hash;
+
+    public CacheResource(Path path) {
+        this(path, false, null);
+    }
+
+    private CacheResource(Path path, boolean temporary, @Nullable HashCode hash) {
+        this.path = path;
+        this.temporary = temporary;
+        this.hash = hash;
+    }
+
+    /**
+     * Writes the stream to a temporary file under the parent path, and computes its SHA-1 meanwhile.
+     */
+    public static CacheResource write(Path parentPath, InputStream input, @Nullable InputLimit limit) throws IOException {
+        var tmp = Files.createTempFile(parentPath, "slideshow-", ".tmp");
+        // noinspection UnstableApiUsage
+        @SuppressWarnings("deprecation") var hashFunction = Hashing.sha1();
+        // noinspection UnstableApiUsage
+        try (var output = new HashingOutputStream(hashFunction, Files.newOutputStream(tmp))) {
+            var total = 0L;
+            var buffer = new byte[BUFFER_SIZE];
+            for (var count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+                output.write(buffer, 0, count);
+                total += count;
+                if (limit != null && total > limit.getValue()) {
+                    limit.reached();
+                    break;
+                }
+            }
+            return new CacheResource(tmp, true, output.hash());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Moves the temporary file to its content-addressed name under the parent path.
+     *
+     * @return the stored path
+     */
+    public synchronized Path store(Path parentPath) throws IOException {
+        if (this.temporary && this.hash != null) {
+            var target = parentPath.resolve(allocateImageName(this.hash, this.path));
+            try {
+                Files.move(this.path, target);
+            } catch (FileAlreadyExistsException e) {
+                // the same content is already stored, and it may be still mapped by a texture being loaded
+                Files.delete(this.path);
+                Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            this.path = target;
+            this.temporary = false;
+        }
+        return this.path;
+    }
+
+    /**
+     * Creates a resource sharing the same stored file if possible, which saves a copy on revalidation.
+     */
+    @Nullable
+    public synchronized CacheResource share() {
+        return this.temporary ? null : new CacheResource(this.path);
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        return new Stream(this.path, Files.newInputStream(this.path));
+    }
+
+    @Override
+    public synchronized long length() {
+        try {
+            return Files.size(this.path);
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        // stored files are only deleted by the storage eviction
+        if (this.temporary) {
+            try {
+                Files.deleteIfExists(this.path);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        output.writeUTF(this.path.toString());
+        output.writeObject(this.hash != null ? this.hash.asBytes() : null);
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        this.path = Path.of(input.readUTF());
+        var hashBytes = (byte[]) input.readObject();
+        this.hash = hashBytes != null ? HashCode.fromBytes(hashBytes) : null;
+    }
+
+    private static String allocateImageName(HashCode hash, Path path) {
+        var hashString = hash.toString();
+        try (var imageStream = ImageIO.createImageInputStream(path.toFile())) {
+            var readers = ImageIO.getImageReaders(imageStream);
+            if (readers.hasNext()) {
+                var suffixes = readers.next().getOriginatingProvider().getFileSuffixes();
+                if (suffixes.length > 0) {
+                    return hashString + "." + suffixes[0].toLowerCase(Locale.ENGLISH);
+                }
+            }
+            return hashString;
+        } catch (IOException e) {
+            return hashString;
+        }
+    }
+
+    /**
+     * An input stream which exposes the file it reads, so that callers are able to map the file instead.
+     */
+    public static final class Stream extends FilterInputStream {
+
+        private final Path path;
+
+        private Stream(Path path, InputStream in) {
+            super(in);
+            this.path = path;
+        }
+
+        public Path getPath() {
+            return this.path;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.teacon.slides.cache;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+@ParametersAreNonnullByDefault
+final class CacheResourceFactory implements ResourceFactory {
+
+    private final Path parentPath;
+
+    public CacheResourceFactory(Path parentPath) {
+        this.parentPath = parentPath;
+    }
+
+    @Override
+    public Resource generate(String requestId, InputStream instream, InputLimit limit) throws IOException {
+        return CacheResource.write(this.parentPath, instream, limit);
+    }
+
+    @Override
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        if (resource instanceof CacheResource cacheResource) {
+            var shared = cacheResource.share();
+            if (shared != null) {
+                return shared;
+            }
+        }
+        try (var stream = resource.getInputStream()) {
+            return CacheResource.write(this.parentPath, stream, null);
+        }
+    }
+}
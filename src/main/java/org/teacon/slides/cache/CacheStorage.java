@@ -3,36 +3,37 @@ package org.teacon.slides.cache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Streams;
-import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import net.minecraft.Util;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.client.utils.DateUtils;
-import org.apache.http.impl.client.cache.FileResource;
 import org.apache.http.message.BasicLineParser;
 import org.apache.logging.log4j.*;
 import org.teacon.slides.SlideShow;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
-import javax.imageio.ImageIO;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
 
 @ParametersAreNonnullByDefault
 final class CacheStorage implements HttpCacheStorage {
@@ -42,67 +43,52 @@ final class CacheStorage implements HttpCacheStorage {
 
     private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
 
-    private final Object keyLock;
+    private static final long MAX_STORAGE_BYTES = Long.getLong("slideshow.cache.maxBytes", 1L << 31); // 2 GiB
+    private static final int MAX_STORAGE_ENTRIES = Integer.getInteger("slideshow.cache.maxEntries", 1 << 14);
+    private static final int MIN_COMPACT_RECORDS = 1 << 10;
+    private static final long ORPHAN_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Pattern STORAGE_FILE_PATTERN = Pattern.compile("[0-9a-f]{40}(\\.\\w+)?|slideshow-\\d+\\.tmp");
+
+    private static final String DERIVED_DIRECTORY = "derived";
+
+    private static final long MAX_HEURISTIC_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     private final Path parentPath;
+    private final long maxStorageBytes;
+    private final int maxStorageEntries;
     private final Path keyFilePath;
+    private final StorageJournal journal;
+    private final CompletableFuture<Void> loadFuture;
 
     private final AtomicInteger markedDirty = new AtomicInteger();
-    private final Map<String, Pair<Path, HttpCacheEntry>> entries = new LinkedHashMap<>();
+    private final Map<String, Pair<Path, HttpCacheEntry>> entries = new ConcurrentHashMap<>();
+    private final Map<String, Long> accessTimes = new ConcurrentHashMap<>();
+    private final Set<String> accessedKeys = ConcurrentHashMap.newKeySet();
+
+    // noinspection UnstableApiUsage
+    private final Striped<Lock> entryLocks = Striped.lazyWeakLock(64);
 
     private final ReferenceQueue<HttpCacheEntry> referenceQueue;
     private final Set<ResourceReference> resourceReferenceHolder;
 
     private static Pair<Path, HttpCacheEntry> normalize(Path parentPath, HttpCacheEntry entry) throws IOException {
-        var bytes = IOUtils.toByteArray(entry.getResource().getInputStream());
-        var tmp = Files.write(Files.createTempFile("slideshow-", ".tmp"), bytes);
-        var path = Files.move(tmp, parentPath.resolve(allocateImageName(bytes)), StandardCopyOption.REPLACE_EXISTING);
-        return Pair.of(path, new HttpCacheEntry(entry.getRequestDate(), entry.getResponseDate(),
-                entry.getStatusLine(), entry.getAllHeaders(), new FileResource(path.toFile()), entry.getVariantMap()));
-    }
-
-    private static String allocateImageName(byte[] bytes) {
-        // noinspection UnstableApiUsage
-        @SuppressWarnings("deprecation") var hashString = Hashing.sha1().hashBytes(bytes).toString();
-        try (var stream = new ByteArrayInputStream(bytes)) {
-            try (var imageStream = ImageIO.createImageInputStream(stream)) {
-                var readers = ImageIO.getImageReaders(imageStream);
-                if (readers.hasNext()) {
-                    var suffixes = readers.next().getOriginatingProvider().getFileSuffixes();
-                    if (suffixes.length > 0) {
-                        return hashString + "." + suffixes[0].toLowerCase(Locale.ENGLISH);
-                    }
-                }
+        var resource = entry.getResource();
+        var cacheResource = (CacheResource) null;
+        if (resource instanceof CacheResource r) {
+            cacheResource = r;
+        } else {
+            try (var stream = resource.getInputStream()) {
+                cacheResource = CacheResource.write(parentPath, stream, null);
             }
-            return hashString;
-        } catch (IOException e) {
-            return hashString;
-        }
-    }
-
-    private static void saveJson(Map<String, Pair<Path, HttpCacheEntry>> entries, JsonObject root) {
-        for (var entry : entries.entrySet()) {
-            var filePath = entry.getValue().getKey();
-            var cacheEntry = entry.getValue().getValue();
-            root.add(entry.getKey(), Util.make(new JsonObject(), child -> {
-                child.addProperty("request_date", DateUtils.formatDate(cacheEntry.getRequestDate()));
-                child.addProperty("response_date", DateUtils.formatDate(cacheEntry.getResponseDate()));
-                child.addProperty("status_line", cacheEntry.getStatusLine().toString());
-                child.add("headers", Util.make(new JsonArray(), array -> {
-                    for (var header : cacheEntry.getAllHeaders()) {
-                        array.add(header.toString());
-                    }
-                }));
-                child.addProperty("resource", filePath.toString());
-                child.add("variant_map", Util.make(new JsonObject(), object -> {
-                    for (var variantEntry : cacheEntry.getVariantMap().entrySet()) {
-                        object.addProperty(variantEntry.getKey(), variantEntry.getValue());
-                    }
-                }));
-            }));
         }
+        var path = cacheResource.store(parentPath);
+        return Pair.of(path, new HttpCacheEntry(entry.getRequestDate(), entry.getResponseDate(),
+                entry.getStatusLine(), entry.getAllHeaders(), new CacheResource(path), entry.getVariantMap()));
     }
 
-    private static void loadJson(Map<String, Pair<Path, HttpCacheEntry>> entries, JsonObject root) {
+    private static void loadJson(Map<String, Pair<Path, HttpCacheEntry>> entries,
+                                 Map<String, Long> accessTimes, JsonObject root) {
         for (var entry : root.entrySet()) {
             var child = entry.getValue().getAsJsonObject();
             var requestDate = DateUtils.parseDate(child.get("request_date").getAsString());
@@ -112,8 +98,10 @@ final class CacheStorage implements HttpCacheStorage {
             var headers = loadHeaders(child);
             var variantMap = loadVariantMap(child);
             var cacheEntry = new HttpCacheEntry(requestDate, responseDate,
-                    statusLine, headers, new FileResource(filePath.toFile()), variantMap);
+                    statusLine, headers, new CacheResource(filePath), variantMap);
             entries.put(entry.getKey(), Pair.of(filePath, cacheEntry));
+            var accessTime = child.has("access_time") ? child.get("access_time").getAsLong() : responseDate.getTime();
+            accessTimes.put(entry.getKey(), accessTime);
         }
     }
 
@@ -132,31 +120,55 @@ final class CacheStorage implements HttpCacheStorage {
     }
 
     private void save() {
-        var root = new JsonObject();
-        synchronized (this.entries) {
-            saveJson(this.entries, root);
+        var accessed = new HashMap<String, Long>();
+        for (var iterator = this.accessedKeys.iterator(); iterator.hasNext(); iterator.remove()) {
+            var url = iterator.next();
+            var accessTime = this.accessTimes.get(url);
+            if (accessTime != null) {
+                accessed.put(url, accessTime);
+            }
         }
-        synchronized (this.keyLock) {
-            try (var writer = Files.newBufferedWriter(this.keyFilePath, StandardCharsets.UTF_8)) {
-                GSON.toJson(root, writer);
-            } catch (Exception e) {
-                LOGGER.warn(MARKER, "Failed to save cache storage. ", e);
+        try {
+            if (!accessed.isEmpty()) {
+                this.journal.appendAccess(accessed);
+            }
+            if (this.journal.getJournalRecords() > Math.max(MIN_COMPACT_RECORDS, this.entries.size())) {
+                this.journal.compact(this.entries, this.accessTimes);
             }
+        } catch (Exception e) {
+            LOGGER.warn(MARKER, "Failed to save cache storage. ", e);
         }
     }
 
     private void load() {
-        var root = new JsonObject();
-        synchronized (this.keyLock) {
-            try (var reader = Files.newBufferedReader(this.keyFilePath, StandardCharsets.UTF_8)) {
-                root = GSON.fromJson(reader, JsonObject.class);
-            } catch (Exception e) {
-                LOGGER.warn(MARKER, "Failed to load cache storage. ", e);
+        var startTime = System.nanoTime();
+        try {
+            if (this.journal.exists()) {
+                this.journal.load(this.entries, this.accessTimes);
+            } else if (Files.exists(this.keyFilePath)) {
+                var root = new JsonObject();
+                try (var reader = Files.newBufferedReader(this.keyFilePath, StandardCharsets.UTF_8)) {
+                    root = GSON.fromJson(reader, JsonObject.class);
+                }
+                loadJson(this.entries, this.accessTimes, root);
+            } else if (!LegacyStorage.loadLegacy(this.parentPath, this.entries)) {
+                return;
             }
+            // fold the journal (or the imported entries) into a new snapshot
+            this.journal.compact(this.entries, this.accessTimes);
+            Files.deleteIfExists(this.keyFilePath);
+        } catch (Exception e) {
+            LOGGER.warn(MARKER, "Failed to load cache storage. ", e);
+        } finally {
+            var elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            LOGGER.info(MARKER, "Loaded {} cache entries in {} ms on thread {}. ",
+                    this.entries.size(), elapsedMillis, Thread.currentThread().getName());
         }
-        synchronized (this.entries) {
-            loadJson(this.entries, root);
-        }
+    }
+
+    private void awaitLoaded() {
+        // the index is loaded in the background, and only cache operations on download threads wait for it
+        this.loadFuture.join();
     }
 
     private void scheduleSave() {
@@ -169,17 +181,43 @@ final class CacheStorage implements HttpCacheStorage {
         }
     }
 
+    private void appendPut(String url, Pair<Path, HttpCacheEntry> pair, long accessTime) {
+        try {
+            this.journal.appendPut(url, pair, accessTime);
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to append to cache storage journal. ", e);
+        }
+    }
+
+    private void appendRemove(String url) {
+        try {
+            this.journal.appendRemove(url);
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to append to cache storage journal. ", e);
+        }
+    }
+
     public CacheStorage(Path parentPath) {
-        this.keyLock = new Object();
+        this(parentPath, MAX_STORAGE_BYTES, MAX_STORAGE_ENTRIES);
+    }
+
+    CacheStorage(Path parentPath, long maxStorageBytes, int maxStorageEntries) {
         this.parentPath = parentPath;
+        this.maxStorageBytes = maxStorageBytes;
+        this.maxStorageEntries = maxStorageEntries;
         this.keyFilePath = this.parentPath.resolve("storage-keys.json");
-        if (Files.exists(this.keyFilePath)) {
-            this.load();
-        } else if (LegacyStorage.loadLegacy(parentPath, this.entries)) {
-            this.save();
-        }
+        this.journal = new StorageJournal(this.parentPath.resolve("storage-keys.bin"),
+                this.parentPath.resolve("storage-keys.journal"));
         this.referenceQueue = new ReferenceQueue<>();
         this.resourceReferenceHolder = Sets.newConcurrentHashSet();
+        this.loadFuture = CompletableFuture.runAsync(this::load, Util.backgroundExecutor());
+    }
+
+    /**
+     * Gets the lock guarding the entry of the url, different urls may share the same lock.
+     */
+    Lock getEntryLock(String url) {
+        return this.entryLocks.get(url);
     }
 
     private void keepResourceReference(final HttpCacheEntry entry) {
@@ -194,40 +232,164 @@ final class CacheStorage implements HttpCacheStorage {
     @Nullable
     @Override
     public HttpCacheEntry getEntry(String url) {
-        synchronized (this.entries) {
-            var pair = this.entries.get(url);
-            return pair != null ? pair.getValue() : null;
+        this.awaitLoaded();
+        var pair = this.entries.get(url);
+        if (pair != null) {
+            this.accessTimes.put(url, System.currentTimeMillis());
+            this.accessedKeys.add(url);
+            this.scheduleSave();
+            return pair.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the stored file of a cached response, so that it could be served without going through
+     * the http client at all.
+     *
+     * @return the stored file, or null if the entry is missing or varies by request headers
+     */
+    @Nullable
+    public StoredFile getStoredFile(String url) {
+        this.awaitLoaded();
+        var pair = this.entries.get(url);
+        if (pair != null) {
+            var cacheEntry = pair.getValue();
+            var now = System.currentTimeMillis();
+            if (cacheEntry.getStatusLine().getStatusCode() != HttpStatus.SC_OK || cacheEntry.hasVariants()) {
+                return null;
+            }
+            if (Files.isRegularFile(pair.getKey())) {
+                this.accessTimes.put(url, now);
+                this.accessedKeys.add(url);
+                this.scheduleSave();
+                var fresh = getCurrentAgeMillis(cacheEntry, now) < getFreshnessLifetimeMillis(cacheEntry);
+                return new StoredFile(pair.getKey(), fresh, isRevalidationRequired(cacheEntry));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the response must not be served stale without a successful revalidation, which is the case
+     * for no-cache and must-revalidate directives (rfc 7234, section 5.2.2), or a no-cache pragma.
+     */
+    private static boolean isRevalidationRequired(HttpCacheEntry entry) {
+        for (var header : entry.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (var element : header.getElements()) {
+                var name = element.getName();
+                if ("no-cache".equalsIgnoreCase(name) || "must-revalidate".equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+        }
+        for (var header : entry.getHeaders(HttpHeaders.PRAGMA)) {
+            for (var element : header.getElements()) {
+                if ("no-cache".equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
+
+    private static long getFreshnessLifetimeMillis(HttpCacheEntry entry) {
+        for (var header : entry.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (var element : header.getElements()) {
+                var name = element.getName();
+                if ("no-cache".equalsIgnoreCase(name) || "no-store".equalsIgnoreCase(name)) {
+                    return 0L;
+                }
+                if ("max-age".equalsIgnoreCase(name)) {
+                    try {
+                        return TimeUnit.SECONDS.toMillis(Long.parseLong(element.getValue()));
+                    } catch (NumberFormatException e) {
+                        return 0L;
+                    }
+                }
+            }
+        }
+        var date = entry.getDate();
+        var expiresHeader = entry.getFirstHeader(HttpHeaders.EXPIRES);
+        if (expiresHeader != null) {
+            var expires = DateUtils.parseDate(expiresHeader.getValue());
+            return date != null && expires != null ? Math.max(0L, expires.getTime() - date.getTime()) : 0L;
+        }
+        // heuristic freshness (rfc 7234, section 4.2.2): a tenth of the time since the last modification
+        var lastModifiedHeader = entry.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        var lastModified = lastModifiedHeader != null ? DateUtils.parseDate(lastModifiedHeader.getValue()) : null;
+        if (date != null && lastModified != null) {
+            return Math.min(MAX_HEURISTIC_LIFETIME_MILLIS, Math.max(0L, date.getTime() - lastModified.getTime()) / 10);
+        }
+        return 0L;
+    }
+
+    private static long getCurrentAgeMillis(HttpCacheEntry entry, long now) {
+        var ageHeader = entry.getFirstHeader(HttpHeaders.AGE);
+        var age = 0L;
+        if (ageHeader != null) {
+            try {
+                age = TimeUnit.SECONDS.toMillis(Math.max(0L, Long.parseLong(ageHeader.getValue())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return Math.max(0L, now - entry.getResponseDate().getTime()) + age;
     }
 
     @Override
     public void putEntry(String url, HttpCacheEntry entry) throws IOException {
-        synchronized (this.entries) {
-            var normalizedEntry = normalize(this.parentPath, entry);
+        // hashing and file moving are done before acquiring the lock, only publishing the entry is guarded
+        this.awaitLoaded();
+        var normalizedEntry = normalize(this.parentPath, entry);
+        var lock = this.getEntryLock(url);
+        lock.lock();
+        try {
+            var accessTime = System.currentTimeMillis();
             this.entries.put(url, normalizedEntry);
-            this.keepResourceReference(entry);
+            this.accessTimes.put(url, accessTime);
+            this.appendPut(url, normalizedEntry, accessTime);
+        } finally {
+            lock.unlock();
         }
+        this.keepResourceReference(entry);
         this.scheduleSave();
     }
 
     @Override
     public void removeEntry(String url) {
-        synchronized (this.entries) {
+        this.awaitLoaded();
+        var lock = this.getEntryLock(url);
+        lock.lock();
+        try {
             this.entries.remove(url);
+            this.accessTimes.remove(url);
+            this.appendRemove(url);
+        } finally {
+            lock.unlock();
         }
         this.scheduleSave();
     }
 
     @Override
     public void updateEntry(String url, HttpCacheUpdateCallback cb) throws IOException {
-        synchronized (this.entries) {
+        // the update must be atomic for the same url, but it should not block other urls
+        this.awaitLoaded();
+        var lock = this.getEntryLock(url);
+        lock.lock();
+        try {
             var pair = this.entries.get(url);
-            this.entries.put(url, normalize(this.parentPath, cb.update(pair != null ? pair.getValue() : null)));
-            var existing = this.entries.get(url).getValue();
+            var existing = pair != null ? pair.getValue() : null;
             var updated = cb.update(existing);
+            var accessTime = System.currentTimeMillis();
+            var normalizedEntry = normalize(this.parentPath, updated);
+            this.entries.put(url, normalizedEntry);
+            this.accessTimes.put(url, accessTime);
+            this.appendPut(url, normalizedEntry, accessTime);
             if (existing != updated) {
                 this.keepResourceReference(updated);
             }
+        } finally {
+            lock.unlock();
         }
         this.scheduleSave();
     }
@@ -241,4 +403,168 @@ final class CacheStorage implements HttpCacheStorage {
         }
         return prevCount - this.resourceReferenceHolder.size();
     }
+
+    /**
+     * Resolves the path of a file derived from stored content, such as compressed textures, which is
+     * deleted along with the stored content.
+     *
+     * @param hash   the SHA-1 of stored content, in lowercase hex
+     * @param suffix the suffix which identifies the kind of derived files
+     */
+    public Path getDerivedPath(String hash, String suffix) {
+        return this.parentPath.resolve(DERIVED_DIRECTORY).resolve(hash + "." + suffix);
+    }
+
+    /**
+     * Evicts derived files, and then least recently accessed entries, until the storage fits in the configured
+     * budget, and then deletes content-addressed files which are no longer referenced by any entry. Derived
+     * files go first since they are regenerated from stored content when needed again.
+     *
+     * @return the count of deleted files
+     */
+    public int trimStorage() {
+        this.awaitLoaded();
+        var fileSizes = new HashMap<Path, Long>();
+        var fileReferences = new HashMap<Path, Integer>();
+        for (var pair : this.entries.values()) {
+            var filePath = pair.getKey().toAbsolutePath().normalize();
+            fileReferences.merge(filePath, 1, Integer::sum);
+            fileSizes.computeIfAbsent(filePath, CacheStorage::sizeOf);
+        }
+        var derivedFiles = listDerivedFiles(this.parentPath.resolve(DERIVED_DIRECTORY));
+        var derivedSizes = new HashMap<Path, Long>();
+        for (var file : derivedFiles.keySet()) {
+            derivedSizes.put(file, sizeOf(file));
+        }
+        var totalBytes = fileSizes.values().stream().mapToLong(Long::longValue).sum()
+                + derivedSizes.values().stream().mapToLong(Long::longValue).sum();
+        var totalEntries = fileReferences.values().stream().mapToInt(Integer::intValue).sum();
+        var deletedFiles = 0;
+        var derivedIterator = derivedFiles.keySet().iterator();
+        while (totalBytes > this.maxStorageBytes && derivedIterator.hasNext()) {
+            var file = derivedIterator.next();
+            try {
+                Files.delete(file);
+                derivedIterator.remove();
+                totalBytes -= derivedSizes.get(file);
+                ++deletedFiles;
+            } catch (IOException e) {
+                LOGGER.debug(MARKER, "Failed to delete derived cache file {}. ", file, e);
+            }
+        }
+        var evictedEntries = 0;
+        if (totalBytes > this.maxStorageBytes || totalEntries > this.maxStorageEntries) {
+            var urls = new ArrayList<>(this.entries.keySet());
+            urls.sort(Comparator.comparingLong(url -> this.accessTimes.getOrDefault(url, 0L)));
+            for (var url : urls) {
+                if (totalBytes <= this.maxStorageBytes && totalEntries <= this.maxStorageEntries) {
+                    break;
+                }
+                var removed = (Pair<Path, HttpCacheEntry>) null;
+                var lock = this.getEntryLock(url);
+                lock.lock();
+                try {
+                    removed = this.entries.remove(url);
+                    this.accessTimes.remove(url);
+                    if (removed != null) {
+                        this.appendRemove(url);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (removed != null) {
+                    var filePath = removed.getKey().toAbsolutePath().normalize();
+                    if (fileReferences.merge(filePath, -1, Integer::sum) <= 0) {
+                        fileReferences.remove(filePath);
+                        totalBytes -= fileSizes.getOrDefault(filePath, 0L);
+                    }
+                    --totalEntries;
+                    ++evictedEntries;
+                }
+            }
+            this.scheduleSave();
+        }
+        var deadline = System.currentTimeMillis() - ORPHAN_GRACE_MILLIS;
+        try (var stream = Files.newDirectoryStream(this.parentPath,
+                p -> STORAGE_FILE_PATTERN.matcher(p.getFileName().toString()).matches())) {
+            for (var file : stream) {
+                // recently written files may belong to an entry which is being published
+                var filePath = file.toAbsolutePath().normalize();
+                if (!fileReferences.containsKey(filePath) && Files.getLastModifiedTime(file).toMillis() < deadline) {
+                    try {
+                        Files.delete(file);
+                        ++deletedFiles;
+                    } catch (IOException e) {
+                        LOGGER.debug(MARKER, "Failed to delete orphan cache file {}. ", file, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to collect orphan cache files. ", e);
+        }
+        var hashes = new HashSet<String>();
+        for (var filePath : fileReferences.keySet()) {
+            var fileName = filePath.getFileName().toString();
+            hashes.add(fileName.substring(0, Math.min(40, fileName.length())));
+        }
+        for (var derivedFile : derivedFiles.entrySet()) {
+            var file = derivedFile.getKey();
+            var fileName = file.getFileName().toString();
+            var hash = fileName.substring(0, Math.min(40, fileName.length()));
+            if (!hashes.contains(hash) && derivedFile.getValue() < deadline) {
+                try {
+                    Files.delete(file);
+                    ++deletedFiles;
+                } catch (IOException e) {
+                    LOGGER.debug(MARKER, "Failed to delete derived cache file {}. ", file, e);
+                }
+            }
+        }
+        LOGGER.debug(MARKER, "Evicted {} entries and deleted {} file(s) from cache storage. ",
+                evictedEntries, deletedFiles);
+        return deletedFiles;
+    }
+
+    /**
+     * Lists derived files from the least recently modified one.
+     *
+     * @return the last modified times of derived files
+     */
+    private static Map<Path, Long> listDerivedFiles(Path derivedPath) {
+        var modifiedTimes = new HashMap<Path, Long>();
+        if (Files.isDirectory(derivedPath)) {
+            try (var stream = Files.newDirectoryStream(derivedPath,
+                    p -> STORAGE_FILE_PATTERN.matcher(p.getFileName().toString()).matches())) {
+                for (var file : stream) {
+                    modifiedTimes.put(file, Files.getLastModifiedTime(file).toMillis());
+                }
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to collect derived cache files. ", e);
+            }
+        }
+        var files = new ArrayList<>(modifiedTimes.keySet());
+        files.sort(Comparator.comparingLong(modifiedTimes::get));
+        var result = new LinkedHashMap<Path, Long>();
+        for (var file : files) {
+            result.put(file, modifiedTimes.get(file));
+        }
+        return result;
+    }
+
+    private static long sizeOf(Path filePath) {
+        try {
+            return Files.size(filePath);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * A stored file of a cached response.
+     *
+     * @param fresh                whether the response could be used without revalidation
+     * @param revalidationRequired whether the response must be revalidated before it is used once stale
+     */
+    public record StoredFile(Path path, boolean fresh, boolean revalidationRequired) {
+    }
 }
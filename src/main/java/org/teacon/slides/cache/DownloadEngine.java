@@ -0,0 +1,51 @@
+package org.teacon.slides.cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The executor running blocking downloads.
+ * <p>
+ * Virtual threads are used if enabled and supported by the runtime, so that a blocked download costs little
+ * and thousands of them could be in flight. They are looked up reflectively, since the mod is compiled against
+ * Java 17. Otherwise, downloads run on platform threads, which are bounded by the {@link DownloadScheduler}.
+ *
+ * @param virtual whether downloads run on virtual threads
+ */
+@ParametersAreNonnullByDefault
+record DownloadEngine(Executor executor, boolean virtual) {
+    private static final Logger LOGGER = LogManager.getLogger(SlideShow.class);
+    private static final Marker MARKER = MarkerManager.getMarker("Downloader");
+
+    private static final String THREAD_NAME_PREFIX = "SlideShow-Download-";
+
+    static DownloadEngine create(boolean preferVirtual) {
+        if (preferVirtual) {
+            try {
+                var builderClass = Class.forName("java.lang.Thread$Builder");
+                var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+                var factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                var executor = (Executor) Executors.class
+                        .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+                LOGGER.info(MARKER, "Slide images are downloaded on virtual threads.");
+                return new DownloadEngine(executor, true);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // not available before java 21, or a preview feature which is not enabled
+                LOGGER.info(MARKER, "Virtual threads are unavailable, fallback to platform threads: {}", e.toString());
+            }
+        }
+        // threads are only created up to the max concurrency, as tasks are submitted only if a slot is free
+        var factory = new ThreadFactoryBuilder().setNameFormat(THREAD_NAME_PREFIX + "%d").setDaemon(true).build();
+        return new DownloadEngine(Executors.newCachedThreadPool(factory), false);
+    }
+}
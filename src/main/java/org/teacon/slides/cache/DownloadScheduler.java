@@ -0,0 +1,156 @@
+package org.teacon.slides.cache;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs blocking downloads on the {@link DownloadEngine}, with limits of concurrent downloads in total and per host.
+ * <p>
+ * When a download slot is free, the pending task with the lowest priority value (usually the squared distance
+ * to the nearest projector requesting it) among the hosts under the limit goes first. Priorities are evaluated
+ * at that time, since players move while tasks are waiting. Tasks are called back out of the lock, priorities
+ * are refreshed into a snapshot once per dispatch, from which free slots are filled in order of a heap.
+ */
+@ParametersAreNonnullByDefault
+final class DownloadScheduler {
+    private final int maxConcurrency;
+    private final int maxPerHost;
+    private final Executor executor;
+
+    // guarded by this
+    private final Set<Pending> pending = new LinkedHashSet<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+
+    DownloadScheduler(int maxConcurrency, int maxPerHost, Executor executor) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.executor = executor;
+    }
+
+    int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    int getMaxPerHost() {
+        return this.maxPerHost;
+    }
+
+    void submit(String host, Task task) {
+        synchronized (this) {
+            this.pending.add(new Pending(host, task));
+        }
+        this.dispatch();
+    }
+
+    /**
+     * @return the count of tasks waiting for a download slot
+     */
+    synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * @return the count of running downloads
+     */
+    synchronized int getRunningCount() {
+        return this.running;
+    }
+
+    private void dispatch() {
+        Pending[] snapshot;
+        synchronized (this) {
+            if (this.running >= this.maxConcurrency || this.pending.isEmpty()) {
+                return;
+            }
+            snapshot = this.pending.toArray(new Pending[0]);
+        }
+        // tasks lock their own state, so they are called back out of the lock
+        var cancelled = new ArrayList<Pending>();
+        var candidates = new PriorityQueue<Candidate>(Math.max(1, snapshot.length),
+                Comparator.comparingDouble(Candidate::priority));
+        for (var candidate : snapshot) {
+            if (candidate.task.tryCancel()) {
+                cancelled.add(candidate);
+            } else {
+                candidates.add(new Candidate(candidate, candidate.task.getPriority()));
+            }
+        }
+        var dropped = new ArrayList<Task>(cancelled.size());
+        synchronized (this) {
+            for (var candidate : cancelled) {
+                // tasks removed by another dispatch meanwhile are notified or run there
+                if (this.pending.remove(candidate)) {
+                    dropped.add(candidate.task);
+                }
+            }
+            while (this.running < this.maxConcurrency && !candidates.isEmpty()) {
+                var next = candidates.poll().pending;
+                if (this.runningPerHost.getOrDefault(next.host, 0) >= this.maxPerHost || !this.pending.remove(next)) {
+                    continue;
+                }
+                this.runningPerHost.merge(next.host, 1, Integer::sum);
+                ++this.running;
+                this.executor.execute(() -> this.run(next));
+            }
+        }
+        dropped.forEach(Task::onCancelled);
+    }
+
+    private void run(Pending started) {
+        try {
+            started.task.run();
+        } finally {
+            synchronized (this) {
+                this.runningPerHost.computeIfPresent(started.host, (k, v) -> v > 1 ? v - 1 : null);
+                --this.running;
+            }
+            this.dispatch();
+        }
+    }
+
+    interface Task extends Runnable {
+        /**
+         * @return lower values are downloaded first
+         */
+        double getPriority();
+
+        /**
+         * Cancels the task if nobody waits for it anymore, which is dropped before it starts.
+         *
+         * @return whether the task is cancelled
+         */
+        boolean tryCancel();
+
+        /**
+         * Called once if the task is dropped.
+         */
+        void onCancelled();
+    }
+
+    /**
+     * A submitted task, which is compared by identity, since the same task could be submitted again.
+     */
+    private static final class Pending {
+        private final String host;
+        private final Task task;
+
+        private Pending(String host, Task task) {
+            this.host = host;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A pending task with its priority evaluated by one dispatch.
+     */
+    private record Candidate(Pending pending, double priority) {
+    }
+}
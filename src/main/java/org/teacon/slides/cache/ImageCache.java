@@ -1,25 +1,38 @@
 package org.teacon.slides.cache;
 
-import org.apache.commons.io.IOUtils;
+import net.minecraft.Util;
 import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.cache.CacheResponseStatus;
 import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.CachingHttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.*;
 import org.teacon.slides.SlideShow;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
 
 public final class ImageCache {
 
@@ -32,16 +45,33 @@ public final class ImageCache {
 
     private static final int MAX_CACHE_OBJECT_SIZE = 1 << 29; // 512 MiB
     private static final CacheConfig CONFIG =
-            CacheConfig.custom().setMaxObjectSize(MAX_CACHE_OBJECT_SIZE).setSharedCache(false).build();
+            CacheConfig.custom().setMaxObjectSize(MAX_CACHE_OBJECT_SIZE).setSharedCache(false)
+                    .setHeuristicCachingEnabled(true).setHeuristicCoefficient(0.1F).setHeuristicDefaultLifetime(0).build();
 
     private static final String DEFAULT_REFERER = "https://github.com/teaconmc/SlideShow";
     // user agent copied from forge gradle 2.3 (class: net.minecraftforge.gradle.common.Constants)
     private static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, " +
             "like Gecko) Chrome/23.0.1271.95 Safari/537.11";
 
+    // stale images are served from disk at once, and revalidated in background batches per host
+    private static final boolean STALE_WHILE_REVALIDATE =
+            Boolean.parseBoolean(System.getProperty("slideshow.cache.staleWhileRevalidate", "true"));
+    private static final long REVALIDATE_INTERVAL_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("slideshow.cache.revalidateSeconds", 30));
+
+    private static final DownloadEngine DOWNLOAD_ENGINE = DownloadEngine.create(
+            Boolean.parseBoolean(System.getProperty("slideshow.download.virtualThreads", "false")));
+
+    private final Path mCacheDir;
     private final CloseableHttpClient mHttpClient;
     private final CacheStorage mCacheStorage;
 
+    // concurrent loads of the same image share one request, keyed by the normalized uri
+    private final ConcurrentHashMap<RequestKey, Request> mPendingRequests = new ConcurrentHashMap<>();
+
+    private final DownloadScheduler mDownloadScheduler;
+    private final Revalidator mRevalidator;
+
     public static ImageCache getInstance() {
         if (sInstance != null) {
             return sInstance;
@@ -54,56 +84,150 @@ public final class ImageCache {
         return sInstance;
     }
 
-    private ImageCache(Path dir) {
+    ImageCache(Path dir) {
+        // blocking http requests never run on the common pool, far more of them are allowed on virtual threads
+        this(dir, DOWNLOAD_ENGINE,
+                Integer.getInteger("slideshow.download.maxConcurrency", DOWNLOAD_ENGINE.virtual() ? 256 : 8),
+                Integer.getInteger("slideshow.download.maxPerHost", DOWNLOAD_ENGINE.virtual() ? 32 : 4));
+    }
+
+    ImageCache(Path dir, DownloadEngine engine, int maxConcurrency, int maxPerHost) {
         try {
             Files.createDirectories(dir);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create cache directory for slide images.", e);
         }
+        mCacheDir = dir;
         mCacheStorage = new CacheStorage(dir);
-        mHttpClient = CachingHttpClients.custom().setCacheConfig(CONFIG).setHttpCacheStorage(mCacheStorage).build();
+        mDownloadScheduler = new DownloadScheduler(maxConcurrency, maxPerHost, engine.executor());
+        mRevalidator = new Revalidator(mDownloadScheduler, this::revalidate, REVALIDATE_INTERVAL_MILLIS);
+        // the connection pool matches the download limits, which is 2 per route by default
+        mHttpClient = CachingHttpClients.custom().setCacheConfig(CONFIG)
+                .setResourceFactory(new CacheResourceFactory(dir)).setHttpCacheStorage(mCacheStorage)
+                .setMaxConnTotal(mDownloadScheduler.getMaxConcurrency())
+                .setMaxConnPerRoute(mDownloadScheduler.getMaxPerHost()).build();
+    }
+
+    /**
+     * Retrieves the image, and maps its content into memory. The returned buffer is direct and read-only,
+     * the content hash is known if the content is served from the cache storage.
+     * <p>
+     * Locations which are the same after normalization share the pending request, each caller gets its
+     * own duplicate of the buffer. Cancelling the returned future drops the download if it has not started
+     * and no other caller is waiting for it.
+     *
+     * @param priority lower values are downloaded first, usually the squared distance to the projector
+     */
+    @Nonnull
+    public CompletableFuture<ImageData> getResource(@Nonnull URI location, boolean online,
+                                                    @Nonnull DoubleSupplier priority) {
+        String uri = LegacyStorage.normalizeUri(location.toString());
+        // an empty query is dropped, so that "a.png" and "a.png?" share the request
+        RequestKey key = new RequestKey(uri.endsWith("?") ? uri.substring(0, uri.length() - 1) : uri, online);
+        CompletableFuture<ImageData> future = new CompletableFuture<>();
+        for (; ; ) {
+            Request request = new Request(key, uri, location);
+            Request pending = mPendingRequests.putIfAbsent(key, request);
+            if (pending == null) {
+                request.join(future, priority);
+                request.start();
+                return future;
+            }
+            if (pending.join(future, priority)) {
+                LOGGER.debug(MARKER, "Joined the pending request of {}", key.uri());
+                return future;
+            }
+            // the pending request is cancelled, which is being removed
+            mPendingRequests.remove(key, pending);
+        }
     }
 
     @Nonnull
-    public CompletableFuture<byte[]> getResource(@Nonnull URI location, boolean online) {
-        return CompletableFuture.supplyAsync(() -> {
-            final HttpCacheContext context = HttpCacheContext.create();
-            try (CloseableHttpResponse response = createResponse(location, context, online)) {
-                try {
-                    return IOUtils.toByteArray(response.getEntity().getContent());
-                } catch (IOException e) {
-                    if (online) {
-                        LOGGER.warn(MARKER, "Failed to read bytes from remote source.", e);
-                    }
-                    throw new CompletionException(e);
+    private ImageData download(@Nonnull URI location, boolean online) {
+        final HttpCacheContext context = HttpCacheContext.create();
+        try (CloseableHttpResponse response = createResponse(location, context, online)) {
+            try (InputStream content = response.getEntity().getContent()) {
+                return mapContent(content);
+            } catch (IOException e) {
+                if (online) {
+                    LOGGER.warn(MARKER, "Failed to read bytes from remote source.", e);
                 }
-            } catch (ClientProtocolException protocolError) {
-                LOGGER.warn(MARKER, "Detected invalid client protocol.", protocolError);
-                throw new CompletionException(protocolError);
-            } catch (IOException connError) {
-                LOGGER.warn(MARKER, "Failed to establish connection.", connError);
-                throw new CompletionException(connError);
+                throw new CompletionException(e);
             }
-        });
+        } catch (ClientProtocolException protocolError) {
+            LOGGER.warn(MARKER, "Detected invalid client protocol.", protocolError);
+            throw new CompletionException(protocolError);
+        } catch (IOException connError) {
+            LOGGER.warn(MARKER, "Failed to establish connection.", connError);
+            throw new CompletionException(connError);
+        }
     }
 
-    private CloseableHttpResponse createResponse(URI location, HttpCacheContext context, boolean online) throws IOException {
-        HttpGet request = new HttpGet(location);
+    /**
+     * Contents served from cache files are mapped directly. Others are streamed to a temporary file
+     * first, so the heap never holds the whole image.
+     */
+    @Nonnull
+    private ImageData mapContent(@Nonnull InputStream content) throws IOException {
+        if (content instanceof CacheResource.Stream stream) {
+            return ImageData.ofStored(map(stream.getPath(), StandardOpenOption.READ), stream.getPath());
+        }
+        Path tmp = Files.createTempFile(mCacheDir, "slideshow-", ".tmp");
+        Files.copy(content, tmp, StandardCopyOption.REPLACE_EXISTING);
+        return new ImageData(map(tmp, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE), null);
+    }
 
-        request.addHeader(HttpHeaders.REFERER, DEFAULT_REFERER);
-        request.addHeader(HttpHeaders.USER_AGENT, DEFAULT_USER_AGENT);
-        request.addHeader(HttpHeaders.ACCEPT, String.join(", ", ImageIO.getReaderMIMETypes()));
+    @Nonnull
+    private static ByteBuffer map(@Nonnull Path path, @Nonnull OpenOption... options) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
 
+    private CloseableHttpResponse createResponse(URI location, HttpCacheContext context, boolean online) throws IOException {
+        HttpGet request = createRequest(location);
+
+        // online requests follow the freshness of cached responses, stale ones are revalidated conditionally
         if (!online) {
             request.addHeader(HttpHeaders.CACHE_CONTROL, "max-stale=2147483647");
             request.addHeader(HttpHeaders.CACHE_CONTROL, "only-if-cached");
-        } else {
-            request.addHeader(HttpHeaders.CACHE_CONTROL, "must-revalidate");
         }
 
         return mHttpClient.execute(request, context);
     }
 
+    /**
+     * Sends a conditional request for the cached response, the response is stored if the content is modified.
+     *
+     * @return true if the content is not modified
+     */
+    private boolean revalidate(URI location) throws IOException {
+        HttpGet request = createRequest(location);
+        request.addHeader(HttpHeaders.CACHE_CONTROL, "max-age=0");
+
+        final HttpCacheContext context = HttpCacheContext.create();
+        try (CloseableHttpResponse response = mHttpClient.execute(request, context)) {
+            EntityUtils.consume(response.getEntity());
+        }
+        return context.getCacheResponseStatus() == CacheResponseStatus.VALIDATED;
+    }
+
+    private static HttpGet createRequest(URI location) {
+        HttpGet request = new HttpGet(location);
+
+        request.addHeader(HttpHeaders.REFERER, DEFAULT_REFERER);
+        request.addHeader(HttpHeaders.USER_AGENT, DEFAULT_USER_AGENT);
+        request.addHeader(HttpHeaders.ACCEPT, String.join(", ", ImageIO.getReaderMIMETypes()));
+
+        return request;
+    }
+
+    @Nonnull
+    private static String hostOf(@Nonnull URI location) {
+        String host = location.getHost();
+        return host != null ? host.toLowerCase(Locale.ROOT) : "";
+    }
+
     private void logRequestHeader(@Nonnull HttpCacheContext context) {
         LOGGER.debug(MARKER, " >> {}", context.getRequest().getRequestLine());
         for (Header header : context.getRequest().getAllHeaders()) {
@@ -116,7 +240,185 @@ public final class ImageCache {
         LOGGER.debug(MARKER, "Remote server status: {}", context.getCacheResponseStatus());
     }
 
+    /**
+     * Resolves the path of a file derived from cached content, which is deleted along with the content.
+     *
+     * @param hash   the SHA-1 of cached content, in lowercase hex
+     * @param suffix the suffix which identifies the kind of derived files
+     */
+    @Nonnull
+    public Path getDerivedPath(@Nonnull String hash, @Nonnull String suffix) {
+        return mCacheStorage.getDerivedPath(hash, suffix);
+    }
+
+    /**
+     * @return the count of downloads waiting for a download slot
+     */
+    public int getPendingDownloads() {
+        return mDownloadScheduler.getPendingCount();
+    }
+
+    /**
+     * @return the count of running downloads
+     */
+    public int getRunningDownloads() {
+        return mDownloadScheduler.getRunningCount();
+    }
+
+    /**
+     * @return the count of loads served from disk without their own conditional request
+     */
+    public long getAvoidedRevalidations() {
+        return mRevalidator.getAvoidedCount();
+    }
+
+    /**
+     * @return the count of conditional requests sent in background batches
+     */
+    public long getBackgroundRevalidations() {
+        return mRevalidator.getRevalidatedCount();
+    }
+
+    /**
+     * @return the count of background revalidations which are not modified
+     */
+    public long getNotModifiedRevalidations() {
+        return mRevalidator.getNotModifiedCount();
+    }
+
     public int cleanResources() {
         return mCacheStorage.cleanResources();
     }
+
+    @Nonnull
+    public CompletableFuture<Integer> trimStorage() {
+        return CompletableFuture.supplyAsync(mCacheStorage::trimStorage, Util.backgroundExecutor());
+    }
+
+    private record RequestKey(String uri, boolean online) {
+    }
+
+    private record Waiter(CompletableFuture<ImageData> future, DoubleSupplier priority) {
+    }
+
+    /**
+     * A request shared by callers loading the same image.
+     */
+    private final class Request implements DownloadScheduler.Task {
+
+        private final RequestKey mKey;
+        private final String mUri; // the normalized uri, which is the key of the cached response
+        private final URI mLocation;
+        private final CompletableFuture<ImageData> mResult = new CompletableFuture<>();
+
+        // guarded by this
+        private final List<Waiter> mWaiters = new ArrayList<>();
+        private boolean mCancelled;
+
+        private Request(RequestKey key, String uri, URI location) {
+            mKey = key;
+            mUri = uri;
+            mLocation = location;
+        }
+
+        /**
+         * @return false if the request is cancelled, the caller should create another request
+         */
+        private boolean join(CompletableFuture<ImageData> future, DoubleSupplier priority) {
+            synchronized (this) {
+                if (mCancelled) {
+                    return false;
+                }
+                mWaiters.add(new Waiter(future, priority));
+            }
+            mResult.whenComplete((data, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(data.duplicate());
+                }
+            });
+            return true;
+        }
+
+        private void start() {
+            // fast path: map the stored file directly if the cached response could be used without revalidation
+            CompletableFuture.supplyAsync(this::mapStored, Util.backgroundExecutor()).whenComplete((data, e) -> {
+                if (data != null) {
+                    finish(data, null);
+                } else {
+                    mDownloadScheduler.submit(hostOf(mLocation), this);
+                }
+            });
+        }
+
+        @Nullable
+        private ImageData mapStored() {
+            CacheStorage.StoredFile storedFile = mCacheStorage.getStoredFile(mUri);
+            // stale responses which forbid serving stale content go through the conditional request instead
+            if (storedFile == null || !storedFile.fresh() && mKey.online()
+                    && (!STALE_WHILE_REVALIDATE || storedFile.revalidationRequired())) {
+                return null;
+            }
+            Path storedPath = storedFile.path();
+            try {
+                ImageData data = ImageData.ofStored(map(storedPath, StandardOpenOption.READ), storedPath);
+                if (storedFile.fresh()) {
+                    mRevalidator.onFresh();
+                } else if (mKey.online()) {
+                    mRevalidator.schedule(hostOf(mLocation), mUri, mLocation);
+                }
+                return data;
+            } catch (IOException e) {
+                LOGGER.debug(MARKER, "Failed to map cached file, fallback to http cache.", e);
+                return null;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                finish(download(mLocation, mKey.online()), null);
+            } catch (Throwable t) {
+                finish(null, t);
+            }
+        }
+
+        private void finish(@Nullable ImageData data, @Nullable Throwable e) {
+            // removed before completion, so that a later load is never joined to a finished request
+            mPendingRequests.remove(mKey, this);
+            if (e != null) {
+                mResult.completeExceptionally(e);
+            } else {
+                mResult.complete(data);
+            }
+        }
+
+        @Override
+        public synchronized double getPriority() {
+            double priority = Double.POSITIVE_INFINITY;
+            for (Waiter waiter : mWaiters) {
+                if (!waiter.future().isDone()) {
+                    priority = Math.min(priority, waiter.priority().getAsDouble());
+                }
+            }
+            return priority;
+        }
+
+        @Override
+        public synchronized boolean tryCancel() {
+            for (Waiter waiter : mWaiters) {
+                if (!waiter.future().isDone()) {
+                    return false;
+                }
+            }
+            return mCancelled = true;
+        }
+
+        @Override
+        public void onCancelled() {
+            LOGGER.debug(MARKER, "Cancelled the download of {}", mKey.uri());
+            finish(null, new CancellationException());
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package org.teacon.slides.cache;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * Mapped content of an image.
+ *
+ * @param data the content, which is direct and read-only
+ * @param hash the SHA-1 of the content in lowercase hex, or null if it is not known without hashing
+ */
+@ParametersAreNonnullByDefault
+public record ImageData(ByteBuffer data, @Nullable String hash) {
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+    /**
+     * Creates the data of a stored file, which is named by the SHA-1 of its content.
+     */
+    static ImageData ofStored(ByteBuffer data, Path path) {
+        var fileName = path.getFileName().toString();
+        var dot = fileName.indexOf('.');
+        var hash = dot < 0 ? fileName : fileName.substring(0, dot);
+        return new ImageData(data, HASH_PATTERN.matcher(hash).matches() ? hash : null);
+    }
+
+    /**
+     * Duplicates the buffer, so that the positions of buffers owned by different callers are independent.
+     */
+    public ImageData duplicate() {
+        return new ImageData(this.data.duplicate(), this.hash);
+    }
+}
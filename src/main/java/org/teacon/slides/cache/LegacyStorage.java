@@ -12,7 +12,7 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.Resource;
 import org.apache.http.client.utils.DateUtils;
-import org.apache.http.impl.client.cache.FileResource;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicStatusLine;
 import org.apache.logging.log4j.LogManager;
@@ -41,6 +41,8 @@ final class LegacyStorage {
     private static final Logger LOGGER = LogManager.getLogger(SlideShow.class);
     private static final Marker MARKER = MarkerManager.getMarker("Downloader");
 
+    private static final URI BASE_URI = URI.create("http://example.com/");
+
     private static final Path LOCAL_CACHE_MAP_JSON_PATH = Paths.get("map.json");
     private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
     private static final TypeToken<Map<String, String>> LOCAL_CACHE_MAP_TYPE = new TypeToken<Map<String, String>>() {};
@@ -53,7 +55,7 @@ final class LegacyStorage {
                 for (Map.Entry<String, String> entry : stringMap.entrySet()) {
                     Path entryPath = Paths.get(entry.getValue());
                     String keyString = normalizeUri(entry.getKey());
-                    Resource resource = new FileResource(entryPath.toFile());
+                    Resource resource = new CacheResource(entryPath);
                     HttpCacheEntry cacheEntry = createDummyCacheEntry(entryPath, resource);
                     map.put(keyString, Pair.of(entryPath, cacheEntry));
                 }
@@ -73,9 +75,12 @@ final class LegacyStorage {
         return new HttpCacheEntry(dummyDate, dummyDate, dummyStatus, headers, resource, Collections.emptyMap());
     }
 
-    private static String normalizeUri(String uriString) {
+    /**
+     * Normalizes the uri in the same way as the cache key generator of the http client.
+     */
+    static String normalizeUri(String uriString) {
         try {
-            URI uri = URI.create(uriString);
+            URI uri = URIUtils.resolve(BASE_URI, URI.create(uriString));
             URL url = new URL(uri.toASCIIString());
             String protocol = url.getProtocol(), hostname = url.getHost();
             String path = url.getPath(), query = url.getQuery(), file = normalizeFile(path, query);
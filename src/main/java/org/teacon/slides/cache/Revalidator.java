@@ -0,0 +1,158 @@
+package org.teacon.slides.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Revalidates stale responses in the background, while their stored files are served immediately.
+ * <p>
+ * Revalidations are collected per host and submitted as a batch after the interval, so that many projectors
+ * showing stale images cost at most one conditional request per image and interval. Batches run on the
+ * {@link DownloadScheduler} after all the downloads which slides are waiting for.
+ */
+@ParametersAreNonnullByDefault
+final class Revalidator {
+    private static final Logger LOGGER = LogManager.getLogger(SlideShow.class);
+    private static final Marker MARKER = MarkerManager.getMarker("Cache");
+
+    private final DownloadScheduler scheduler;
+    private final Revalidation revalidation;
+    private final long intervalMillis;
+
+    // guarded by this, host to the urls and locations in the batch
+    private final Map<String, Map<String, URI>> batches = new HashMap<>();
+    private final Map<String, Long> revalidatedTimes = new HashMap<>();
+
+    private final AtomicLong avoided = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    Revalidator(DownloadScheduler scheduler, Revalidation revalidation, long intervalMillis) {
+        this.scheduler = scheduler;
+        this.revalidation = revalidation;
+        this.intervalMillis = Math.max(0L, intervalMillis);
+    }
+
+    /**
+     * Counts a response served without revalidation since it is still fresh.
+     */
+    void onFresh() {
+        this.avoided.incrementAndGet();
+    }
+
+    /**
+     * Schedules the revalidation of a stale response, which is skipped if the response is revalidated
+     * or scheduled already in the interval.
+     *
+     * @param url the normalized url, which is the key of the cached response
+     */
+    void schedule(String host, String url, URI location) {
+        var now = System.currentTimeMillis();
+        synchronized (this) {
+            var revalidatedTime = this.revalidatedTimes.get(url);
+            if (revalidatedTime != null && now - revalidatedTime < this.intervalMillis) {
+                this.avoided.incrementAndGet();
+                return;
+            }
+            var batch = this.batches.get(host);
+            if (batch == null) {
+                this.batches.put(host, batch = new LinkedHashMap<>());
+                var delayedExecutor = CompletableFuture.delayedExecutor(this.intervalMillis, TimeUnit.MILLISECONDS);
+                delayedExecutor.execute(() -> this.flush(host));
+            }
+            if (batch.putIfAbsent(url, location) != null) {
+                this.avoided.incrementAndGet();
+            }
+        }
+    }
+
+    private void flush(String host) {
+        var now = System.currentTimeMillis();
+        Map<String, URI> batch;
+        synchronized (this) {
+            batch = this.batches.remove(host);
+            if (batch == null) {
+                return;
+            }
+            this.revalidatedTimes.values().removeIf(time -> now - time >= this.intervalMillis);
+            for (var url : batch.keySet()) {
+                this.revalidatedTimes.put(url, now);
+            }
+        }
+        LOGGER.debug(MARKER, "Revalidate {} cached image(s) from {}", batch.size(), host);
+        for (var location : batch.values()) {
+            this.scheduler.submit(host, new DownloadScheduler.Task() {
+                @Override
+                public double getPriority() {
+                    return Double.POSITIVE_INFINITY;
+                }
+
+                @Override
+                public boolean tryCancel() {
+                    return false;
+                }
+
+                @Override
+                public void onCancelled() {
+                }
+
+                @Override
+                public void run() {
+                    try {
+                        var validated = Revalidator.this.revalidation.revalidate(location);
+                        Revalidator.this.revalidated.incrementAndGet();
+                        if (validated) {
+                            Revalidator.this.notModified.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.debug(MARKER, "Failed to revalidate {}", location, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the count of loads served without their own conditional request
+     */
+    long getAvoidedCount() {
+        return this.avoided.get();
+    }
+
+    /**
+     * @return the count of conditional requests sent in the background
+     */
+    long getRevalidatedCount() {
+        return this.revalidated.get();
+    }
+
+    /**
+     * @return the count of background revalidations which are not modified
+     */
+    long getNotModifiedCount() {
+        return this.notModified.get();
+    }
+
+    @FunctionalInterface
+    interface Revalidation {
+        /**
+         * Sends a conditional request, and stores the response if the content is modified.
+         *
+         * @return true if the content is not modified
+         */
+        boolean revalidate(URI location) throws IOException;
+    }
+}
@@ -0,0 +1,251 @@
+package org.teacon.slides.cache;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicLineParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary storage of cache keys, which consists of a snapshot file and an append-only journal file.
+ * <p>
+ * Every change is appended to the journal as a small record, and the journal is folded into the
+ * snapshot by {@link #compact} from time to time. Replaying a record twice is harmless, so a crash
+ * between replacing the snapshot and truncating the journal loses nothing.
+ */
+@ParametersAreNonnullByDefault
+final class StorageJournal {
+    private static final Logger LOGGER = LogManager.getLogger(SlideShow.class);
+    private static final Marker MARKER = MarkerManager.getMarker("Downloader");
+
+    private static final int SNAPSHOT_MAGIC = 0x534C5353; // SLSS
+    private static final int JOURNAL_MAGIC = 0x534C534A; // SLSJ
+    private static final int VERSION = 1;
+
+    private static final int MAX_STRING_LENGTH = 1 << 20; // 1 MiB
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+    private static final int RECORD_ACCESS = 3;
+
+    private final Path snapshotPath;
+    private final Path journalPath;
+
+    @Nullable
+    private DataOutputStream journalOutput;
+    private int journalRecords;
+
+    public StorageJournal(Path snapshotPath, Path journalPath) {
+        this.snapshotPath = snapshotPath;
+        this.journalPath = journalPath;
+    }
+
+    public boolean exists() {
+        return Files.exists(this.snapshotPath) || Files.exists(this.journalPath);
+    }
+
+    public synchronized int getJournalRecords() {
+        return this.journalRecords;
+    }
+
+    /**
+     * Loads the snapshot and replays the journal. Replay stops at the first incomplete or invalid record,
+     * which should be dropped by a {@link #compact} right after, so that new records are never appended
+     * after it.
+     */
+    public synchronized void load(Map<String, Pair<Path, HttpCacheEntry>> entries,
+                                  Map<String, Long> accessTimes) throws IOException {
+        if (Files.exists(this.snapshotPath)) {
+            try (var input = openInput(this.snapshotPath, SNAPSHOT_MAGIC)) {
+                for (int i = 0, size = input.readInt(); i < size; ++i) {
+                    readPut(input, entries, accessTimes);
+                }
+            }
+        }
+        if (Files.exists(this.journalPath)) {
+            try (var input = openInput(this.journalPath, JOURNAL_MAGIC)) {
+                for (var type = input.read(); type >= 0; type = input.read()) {
+                    switch (type) {
+                        case RECORD_PUT -> readPut(input, entries, accessTimes);
+                        case RECORD_REMOVE -> {
+                            var url = readString(input);
+                            entries.remove(url);
+                            accessTimes.remove(url);
+                        }
+                        case RECORD_ACCESS -> {
+                            var url = readString(input);
+                            var accessTime = input.readLong();
+                            if (entries.containsKey(url)) {
+                                accessTimes.put(url, accessTime);
+                            }
+                        }
+                        default -> throw new IOException("Unknown journal record type " + type);
+                    }
+                    ++this.journalRecords;
+                }
+            } catch (EOFException e) {
+                // the last record is incomplete, which is usually caused by an unexpected exit
+            } catch (IOException | RuntimeException e) {
+                // a corrupt record, the following records could not be located anymore
+                LOGGER.warn(MARKER, "Stopped replaying cache storage journal at a corrupt record. ", e);
+            }
+        }
+    }
+
+    public synchronized void appendPut(String url, Pair<Path, HttpCacheEntry> pair, long accessTime) throws IOException {
+        var output = this.openJournal();
+        output.writeByte(RECORD_PUT);
+        writePut(output, url, pair, accessTime);
+        output.flush();
+        ++this.journalRecords;
+    }
+
+    public synchronized void appendRemove(String url) throws IOException {
+        var output = this.openJournal();
+        output.writeByte(RECORD_REMOVE);
+        writeString(output, url);
+        output.flush();
+        ++this.journalRecords;
+    }
+
+    public synchronized void appendAccess(Map<String, Long> accessTimes) throws IOException {
+        var output = this.openJournal();
+        for (var entry : accessTimes.entrySet()) {
+            output.writeByte(RECORD_ACCESS);
+            writeString(output, entry.getKey());
+            output.writeLong(entry.getValue());
+            ++this.journalRecords;
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes all the entries to a new snapshot, and then truncates the journal.
+     */
+    public synchronized void compact(Map<String, Pair<Path, HttpCacheEntry>> entries,
+                                     Map<String, Long> accessTimes) throws IOException {
+        var snapshot = new ArrayList<>(entries.entrySet());
+        var tmp = this.snapshotPath.resolveSibling(this.snapshotPath.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+            for (var entry : snapshot) {
+                writePut(output, entry.getKey(), entry.getValue(), accessTimes.getOrDefault(entry.getKey(), 0L));
+            }
+        }
+        try {
+            Files.move(tmp, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (this.journalOutput != null) {
+            this.journalOutput.close();
+            this.journalOutput = null;
+        }
+        Files.deleteIfExists(this.journalPath);
+        this.journalRecords = 0;
+    }
+
+    private DataOutputStream openJournal() throws IOException {
+        if (this.journalOutput == null) {
+            var fresh = !Files.exists(this.journalPath) || Files.size(this.journalPath) == 0;
+            var stream = Files.newOutputStream(this.journalPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            this.journalOutput = new DataOutputStream(new BufferedOutputStream(stream));
+            if (fresh) {
+                this.journalOutput.writeInt(JOURNAL_MAGIC);
+                this.journalOutput.writeInt(VERSION);
+            }
+        }
+        return this.journalOutput;
+    }
+
+    private static DataInputStream openInput(Path path, int magic) throws IOException {
+        var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        try {
+            if (input.readInt() != magic || input.readInt() != VERSION) {
+                throw new IOException("Unrecognized cache storage file: " + path);
+            }
+            return input;
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    private static void writePut(DataOutputStream output, String url,
+                                 Pair<Path, HttpCacheEntry> pair, long accessTime) throws IOException {
+        var cacheEntry = pair.getValue();
+        writeString(output, url);
+        writeString(output, pair.getKey().toString());
+        output.writeLong(accessTime);
+        output.writeLong(cacheEntry.getRequestDate().getTime());
+        output.writeLong(cacheEntry.getResponseDate().getTime());
+        writeString(output, cacheEntry.getStatusLine().toString());
+        var headers = cacheEntry.getAllHeaders();
+        output.writeInt(headers.length);
+        for (var header : headers) {
+            writeString(output, header.getName());
+            writeString(output, header.getValue());
+        }
+        var variantMap = cacheEntry.getVariantMap();
+        output.writeInt(variantMap.size());
+        for (var variantEntry : variantMap.entrySet()) {
+            writeString(output, variantEntry.getKey());
+            writeString(output, variantEntry.getValue());
+        }
+    }
+
+    private static void readPut(DataInputStream input, Map<String, Pair<Path, HttpCacheEntry>> entries,
+                                Map<String, Long> accessTimes) throws IOException {
+        var url = readString(input);
+        var filePath = Paths.get(readString(input));
+        var accessTime = input.readLong();
+        var requestDate = new Date(input.readLong());
+        var responseDate = new Date(input.readLong());
+        var statusLine = BasicLineParser.parseStatusLine(readString(input), null);
+        var headers = new Header[input.readInt()];
+        for (int i = 0; i < headers.length; ++i) {
+            headers[i] = new BasicHeader(readString(input), readString(input));
+        }
+        var variantMap = new HashMap<String, String>();
+        for (int i = 0, size = input.readInt(); i < size; ++i) {
+            variantMap.put(readString(input), readString(input));
+        }
+        var cacheEntry = new HttpCacheEntry(requestDate, responseDate,
+                statusLine, headers, new CacheResource(filePath), variantMap);
+        entries.put(url, Pair.of(filePath, cacheEntry));
+        accessTimes.put(url, accessTime);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        var length = input.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        var bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
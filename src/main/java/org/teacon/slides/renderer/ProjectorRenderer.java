@@ -1,6 +1,7 @@
 package org.teacon.slides.renderer;
 
 import com.mojang.blaze3d.vertex.PoseStack;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.LightTexture;
 import net.minecraft.client.renderer.MultiBufferSource;
 import net.minecraft.client.renderer.blockentity.BlockEntityRenderer;
@@ -8,6 +9,7 @@ import net.minecraft.client.renderer.blockentity.BlockEntityRendererProvider;
 import net.minecraft.client.renderer.texture.OverlayTexture;
 import net.minecraft.core.Direction;
 import net.minecraft.world.level.block.state.properties.BlockStateProperties;
+import net.minecraft.world.phys.Vec3;
 import org.teacon.slides.projector.ProjectorBlock;
 import org.teacon.slides.projector.ProjectorBlockEntity;
 
@@ -31,7 +33,8 @@ public class ProjectorRenderer implements BlockEntityRenderer<ProjectorBlockEnti
     public void render(ProjectorBlockEntity tile, float partialTick, PoseStack pStack,
                        MultiBufferSource source, int packedLight, int packedOverlay) {
         // always update slide state
-        final Slide slide = SlideState.getSlide(tile.mLocation);
+        final Vec3 camera = Minecraft.getInstance().gameRenderer.getMainCamera().getPosition();
+        final Slide slide = SlideState.getSlide(tile.mLocation, camera.distanceToSqr(Vec3.atCenterOf(tile.getBlockPos())));
         if (slide == null) {
             return;
         }
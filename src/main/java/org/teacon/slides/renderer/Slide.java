@@ -15,6 +15,7 @@ import net.minecraftforge.api.distmarker.OnlyIn;
 import org.jetbrains.annotations.NotNull;
 import org.lwjgl.opengl.*;
 import org.teacon.slides.SlideShow;
+import org.teacon.slides.texture.FrameRegion;
 import org.teacon.slides.texture.FrameTexture;
 
 import javax.annotation.Nonnull;
@@ -35,6 +36,12 @@ public sealed abstract class Slide implements AutoCloseable permits Slide.Icon,
     public void close() {
     }
 
+    /**
+     * Releases the texture memory which could be restored on demand.
+     */
+    public void trim() {
+    }
+
     public int queryIntrinsicWidth(long tick, float partialTick) {
         return 0;
     }
@@ -84,41 +91,43 @@ public sealed abstract class Slide implements AutoCloseable permits Slide.Icon,
                            @NotNull Matrix3f normal, float width, float height, int color,
                            int light, int overlay, boolean front, boolean back, long tick, float partialTick) {
             int id = mTexture.currentTextureID(tick, partialTick);
+            FrameRegion region = mTexture.currentRegion();
+            float u0 = region.u0(), v0 = region.v0(), u1 = region.u1(), v1 = region.v1();
             int red = (color >> 16) & 255, green = (color >> 8) & 255, blue = color & 255, alpha = color >>> 24;
             VertexConsumer builder = source.getBuffer(mRenderTypes.computeIfAbsent(id, SlideRenderType::new));
             if (front) {
                 builder.vertex(matrix, 0, 1 / 192F, 1)
-                        .color(red, green, blue, alpha).uv(0, 1)
+                        .color(red, green, blue, alpha).uv(u0, v1)
                         .uv2(light)
                         .normal(normal, 0, 1, 0).endVertex();
                 builder.vertex(matrix, 1, 1 / 192F, 1)
-                        .color(red, green, blue, alpha).uv(1, 1)
+                        .color(red, green, blue, alpha).uv(u1, v1)
                         .uv2(light)
                         .normal(normal, 0, 1, 0).endVertex();
                 builder.vertex(matrix, 1, 1 / 192F, 0)
-                        .color(red, green, blue, alpha).uv(1, 0)
+                        .color(red, green, blue, alpha).uv(u1, v0)
                         .uv2(light)
                         .normal(normal, 0, 1, 0).endVertex();
                 builder.vertex(matrix, 0, 1 / 192F, 0)
-                        .color(red, green, blue, alpha).uv(0, 0)
+                        .color(red, green, blue, alpha).uv(u0, v0)
                         .uv2(light)
                         .normal(normal, 0, 1, 0).endVertex();
             }
             if (back) {
                 builder.vertex(matrix, 0, -1 / 256F, 0)
-                        .color(red, green, blue, alpha).uv(0, 0)
+                        .color(red, green, blue, alpha).uv(u0, v0)
                         .uv2(light)
                         .normal(normal, 0, -1, 0).endVertex();
                 builder.vertex(matrix, 1, -1 / 256F, 0)
-                        .color(red, green, blue, alpha).uv(1, 0)
+                        .color(red, green, blue, alpha).uv(u1, v0)
                         .uv2(light)
                         .normal(normal, 0, -1, 0).endVertex();
                 builder.vertex(matrix, 1, -1 / 256F, 1)
-                        .color(red, green, blue, alpha).uv(1, 1)
+                        .color(red, green, blue, alpha).uv(u1, v1)
                         .uv2(light)
                         .normal(normal, 0, -1, 0).endVertex();
                 builder.vertex(matrix, 0, -1 / 256F, 1)
-                        .color(red, green, blue, alpha).uv(0, 1)
+                        .color(red, green, blue, alpha).uv(u0, v1)
                         .uv2(light)
                         .normal(normal, 0, -1, 0).endVertex();
             }
@@ -129,32 +138,45 @@ public sealed abstract class Slide implements AutoCloseable permits Slide.Icon,
             mTexture.release();
         }
 
+        @Override
+        public void trim() {
+            mTexture.trim();
+        }
+
         @Override
         public int queryIntrinsicWidth(long tick, float partialTick) {
             int id = mTexture.currentTextureID(tick, partialTick);
+            FrameRegion region = mTexture.currentRegion();
+            int size;
             if (sARB_DSA) {
-                return ARBDirectStateAccess.glGetTextureLevelParameteri(id, 0, GL32C.GL_TEXTURE_WIDTH);
-            }
-            if (sEXT_DSA) {
-                return EXTDirectStateAccess.glGetTextureLevelParameteriEXT(id, GL32C.GL_TEXTURE_2D, 0,
+                size = ARBDirectStateAccess.glGetTextureLevelParameteri(id, 0, GL32C.GL_TEXTURE_WIDTH);
+            } else if (sEXT_DSA) {
+                size = EXTDirectStateAccess.glGetTextureLevelParameteriEXT(id, GL32C.GL_TEXTURE_2D, 0,
                         GL32C.GL_TEXTURE_WIDTH);
+            } else {
+                GlStateManager._bindTexture(id);
+                size = GL32C.glGetTexLevelParameteri(GL32C.GL_TEXTURE_2D, 0, GL32C.GL_TEXTURE_WIDTH);
             }
-            GlStateManager._bindTexture(id);
-            return GL32C.glGetTexLevelParameteri(GL32C.GL_TEXTURE_2D, 0, GL32C.GL_TEXTURE_WIDTH);
+            // frames may be packed in the same texture
+            return Math.round(size * (region.u1() - region.u0()));
         }
 
         @Override
         public int queryIntrinsicHeight(long tick, float partialTick) {
             int id = mTexture.currentTextureID(tick, partialTick);
+            FrameRegion region = mTexture.currentRegion();
+            int size;
             if (sARB_DSA) {
-                return ARBDirectStateAccess.glGetTextureLevelParameteri(id, 0, GL32C.GL_TEXTURE_HEIGHT);
-            }
-            if (sEXT_DSA) {
-                return EXTDirectStateAccess.glGetTextureLevelParameteriEXT(id, GL32C.GL_TEXTURE_2D, 0,
+                size = ARBDirectStateAccess.glGetTextureLevelParameteri(id, 0, GL32C.GL_TEXTURE_HEIGHT);
+            } else if (sEXT_DSA) {
+                size = EXTDirectStateAccess.glGetTextureLevelParameteriEXT(id, GL32C.GL_TEXTURE_2D, 0,
                         GL32C.GL_TEXTURE_HEIGHT);
+            } else {
+                GlStateManager._bindTexture(id);
+                size = GL32C.glGetTexLevelParameteri(GL32C.GL_TEXTURE_2D, 0, GL32C.GL_TEXTURE_HEIGHT);
             }
-            GlStateManager._bindTexture(id);
-            return GL32C.glGetTexLevelParameteri(GL32C.GL_TEXTURE_2D, 0, GL32C.GL_TEXTURE_HEIGHT);
+            // frames may be packed in the same texture
+            return Math.round(size * (region.v1() - region.v0()));
         }
 
         @Override
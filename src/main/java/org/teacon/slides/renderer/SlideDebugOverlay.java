@@ -0,0 +1,69 @@
+package org.teacon.slides.renderer;
+
+import net.minecraft.client.Minecraft;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import net.minecraftforge.client.event.RenderGameOverlayEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.texture.GifTexture;
+import org.teacon.slides.texture.TextureMemory;
+import org.teacon.slides.texture.TextureRegistry;
+import org.teacon.slides.texture.UploadScheduler;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Lists the stats of each subsystem of slides on the left of the debug screen (F3).
+ */
+@OnlyIn(Dist.CLIENT)
+@Mod.EventBusSubscriber(value = Dist.CLIENT, modid = SlideShow.ID)
+public final class SlideDebugOverlay {
+
+    private SlideDebugOverlay() {
+    }
+
+    @SubscribeEvent
+    static void renderOverlay(@Nonnull RenderGameOverlayEvent.Text event) {
+        if (Minecraft.getInstance().options.renderDebug) {
+            List<String> lines = event.getLeft();
+            addUploads(lines);
+            addDownloads(lines);
+            addTextureMemory(lines);
+            addGifFrames(lines);
+            addSharedTextures(lines);
+        }
+    }
+
+    private static void addUploads(List<String> lines) {
+        lines.add(String.format("[SlideShow] Uploads: %d (%.2f ms), %d pending",
+                UploadScheduler.getLastFrameUploads(), UploadScheduler.getLastFrameNanos() / 1e6,
+                UploadScheduler.getLastFramePending()));
+    }
+
+    private static void addDownloads(List<String> lines) {
+        ImageCache cache = ImageCache.getInstance();
+        lines.add(String.format("[SlideShow] Downloads: %d running, %d pending",
+                cache.getRunningDownloads(), cache.getPendingDownloads()));
+    }
+
+    private static void addTextureMemory(List<String> lines) {
+        lines.add(String.format("[SlideShow] Texture memory: %d / %d MiB",
+                TextureMemory.getUsedBytes() >> 20, TextureMemory.getBudgetBytes() >> 20));
+    }
+
+    private static void addGifFrames(List<String> lines) {
+        lines.add(String.format("[SlideShow] GIF frames: %d on time, %d late",
+                GifTexture.getOnTimeFrames(), GifTexture.getLateFrames()));
+    }
+
+    private static void addSharedTextures(List<String> lines) {
+        long acquires = TextureRegistry.getAcquireCount(), hits = TextureRegistry.getHitCount();
+        lines.add(String.format("[SlideShow] Shared textures: %d for %d slides, %d / %d hits (%.1f%%)",
+                TextureRegistry.getTextureCount(), TextureRegistry.getReferenceCount(), hits, acquires,
+                acquires > 0 ? hits * 100.0 / acquires : 0.0));
+    }
+}
@@ -1,8 +1,11 @@
 package org.teacon.slides.renderer;
 
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.blaze3d.systems.RenderSystem;
 import net.minecraft.client.Minecraft;
+import net.minecraft.util.Mth;
 import net.minecraftforge.api.distmarker.Dist;
 import net.minecraftforge.api.distmarker.OnlyIn;
 import net.minecraftforge.client.event.ClientPlayerNetworkEvent;
@@ -13,30 +16,44 @@ import org.apache.commons.lang3.StringUtils;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL46C;
 import org.lwjgl.opengl.GLCapabilities;
-import org.lwjgl.system.MemoryUtil;
 import org.teacon.slides.GifDecoder;
 import org.teacon.slides.SlideShow;
+import org.teacon.slides.StreamingGifDecoder;
 import org.teacon.slides.cache.ImageCache;
+import org.teacon.slides.cache.ImageData;
+import org.teacon.slides.texture.CompressedImage;
+import org.teacon.slides.texture.CompressedTexture;
 import org.teacon.slides.texture.FrameTexture;
+import org.teacon.slides.texture.GifFrameQueue;
 import org.teacon.slides.texture.GifTexture;
+import org.teacon.slides.texture.MipLevels;
 import org.teacon.slides.texture.NativeImageTexture;
+import org.teacon.slides.texture.TextureMemory;
+import org.teacon.slides.texture.TextureRegistry;
+import org.teacon.slides.texture.UploadScheduler;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
 
+import static org.lwjgl.opengl.GL32C.GL_MAX_TEXTURE_SIZE;
 import static org.lwjgl.opengl.GL32C.glGetFloat;
+import static org.lwjgl.opengl.GL32C.glGetInteger;
 
 /**
  * @author BloCamLimb
@@ -45,7 +62,20 @@ import static org.lwjgl.opengl.GL32C.glGetFloat;
 @Mod.EventBusSubscriber(value = Dist.CLIENT, modid = SlideShow.ID)
 public final class SlideState {
 
-    private static final Executor RENDER_EXECUTOR = r -> RenderSystem.recordRenderCall(r::run);
+    // a fork-join pool so that frames of animated images are decoded in parallel with work stealing
+    private static final ForkJoinPool DECODER_EXECUTOR = new ForkJoinPool(
+            Mth.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, 4), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("SlideShow-Decoder-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    private static final boolean GIF_PARALLEL = Boolean.parseBoolean(System.getProperty("slideshow.gif.parallel", "true"));
+
+    // color indices of decoded gif frames retained per slide, so frames are decoded again without lzw
+    private static final long GIF_RETAIN_BYTES = Long.getLong("slideshow.gif.retainMiB", 16) << 20; // 16 MiB
+    // canvas snapshots of gif keyframes per slide, so seeking backwards never decodes from the first frame
+    private static final long GIF_SNAPSHOT_BYTES = Long.getLong("slideshow.gif.snapshotMiB", 16) << 20; // 16 MiB
 
     private static final int RECYCLE_SECONDS = 120; // 2min
     private static final int RETRY_INTERVAL_SECONDS = 30; // 30s
@@ -58,6 +88,21 @@ public final class SlideState {
 
     private static float sMaxAnisotropic = -1;
 
+    // block compression of large static images, which is lossy, so it is disabled by default
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("slideshow.texture.compress", "false"));
+    private static final int COMPRESSION_MIN_SIZE = Integer.getInteger("slideshow.texture.compressMinSize", 2048);
+
+    private static volatile boolean sCompressionSupported;
+
+    // larger images are downscaled before uploading, which is also limited by the driver
+    private static final int MAX_TEXTURE_SIZE = Integer.getInteger("slideshow.texture.maxSize", 4096);
+
+    private static volatile int sMaxTextureSize = MAX_TEXTURE_SIZE;
+
+    // mip levels are generated on decoder threads, and cached by content for large images
+    private static final boolean CPU_MIPMAPS = Boolean.parseBoolean(System.getProperty("slideshow.texture.cpuMipmaps", "true"));
+    private static final int MIP_CACHE_MIN_SIZE = Integer.getInteger("slideshow.texture.mipCacheMinSize", 1024);
+
     static {
         sCache = new AtomicReference<>(new ConcurrentHashMap<>());
     }
@@ -70,11 +115,23 @@ public final class SlideState {
                 if (!map.isEmpty()) {
                     map.entrySet().removeIf(entry -> entry.getValue().update());
                 }
+                if (TextureMemory.isOverBudget()) {
+                    RenderSystem.recordRenderCall(SlideState::evict);
+                }
                 if (++sCleanerTimer > CLEANER_INTERVAL_SECONDS) {
                     int n = ImageCache.getInstance().cleanResources();
                     if (n != 0) {
                         SlideShow.LOGGER.debug("Cleanup {} http cache image resources", n);
                     }
+                    ImageCache.getInstance().trimStorage().thenAccept(m -> {
+                        if (m != 0) {
+                            SlideShow.LOGGER.debug("Cleanup {} http cache image files", m);
+                        }
+                    });
+                    SlideShow.LOGGER.debug("Avoided {} revalidations, sent {} in background ({} not modified)",
+                            ImageCache.getInstance().getAvoidedRevalidations(),
+                            ImageCache.getInstance().getBackgroundRevalidations(),
+                            ImageCache.getInstance().getNotModifiedRevalidations());
                     sCleanerTimer = 0;
                 }
                 if (sMaxAnisotropic < 0) {
@@ -87,6 +144,8 @@ public final class SlideState {
                     } else {
                         sMaxAnisotropic = 0;
                     }
+                    sCompressionSupported = COMPRESSION && caps.GL_EXT_texture_compression_s3tc;
+                    sMaxTextureSize = Math.min(MAX_TEXTURE_SIZE, glGetInteger(GL_MAX_TEXTURE_SIZE));
                 }
             }
         }
@@ -102,16 +161,43 @@ public final class SlideState {
         });
     }
 
+    /**
+     * Evicts textures of least recently rendered slides until the texture memory fits in the budget.
+     * Animated frames are trimmed first. Evicted slides will be reloaded from the cache on demand.
+     */
+    private static void evict() {
+        ConcurrentHashMap<String, SlideState> map = sCache.getAcquire();
+        List<Map.Entry<String, SlideState>> entries = new ArrayList<>(map.entrySet());
+        entries.removeIf(entry -> entry.getValue().mState != State.LOADED);
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().mLastRenderTick));
+        int trimmed = 0, evicted = 0;
+        for (int i = 0; i < entries.size() && TextureMemory.isOverBudget(); i++) {
+            entries.get(i).getValue().mSlide.trim();
+            trimmed++;
+        }
+        for (int i = 0; i < entries.size() && TextureMemory.isOverBudget(); i++) {
+            Map.Entry<String, SlideState> entry = entries.get(i);
+            SlideState state = entry.getValue();
+            // slides being rendered are never evicted
+            if (state.mLastRenderTick < sAnimationTick - 20 && map.remove(entry.getKey(), state)) {
+                state.mSlide.close();
+                evicted++;
+            }
+        }
+        SlideShow.LOGGER.debug("Trimmed {} and evicted {} slide images, texture memory: {} / {} MiB",
+                trimmed, evicted, TextureMemory.getUsedBytes() >> 20, TextureMemory.getBudgetBytes() >> 20);
+    }
+
     public static long getAnimationTick() {
         return sAnimationTick;
     }
 
     @Nullable
-    public static Slide getSlide(@Nonnull String location) {
+    public static Slide getSlide(@Nonnull String location, double distanceSqr) {
         if (location.isEmpty()) {
             return null;
         }
-        return sCache.getAcquire().computeIfAbsent(location, SlideState::new).getWithUpdate();
+        return sCache.getAcquire().computeIfAbsent(location, SlideState::new).getWithUpdate(distanceSqr);
     }
 
     /**
@@ -122,6 +208,17 @@ public final class SlideState {
 
     private int mCounter;
 
+    /**
+     * Squared distance from the camera when the slide is rendered last time, used as the upload priority.
+     */
+    private double mDistanceSqr = Double.MAX_VALUE;
+    private long mLastRenderTick;
+
+    /**
+     * The pending image data, which is null if the location is empty.
+     */
+    private CompletableFuture<ImageData> mDownload;
+
     private SlideState(String location) {
         URI uri = createURI(location);
         if (uri == null) {
@@ -132,7 +229,8 @@ public final class SlideState {
             mSlide = Slide.loading();
             mState = State.LOADING;
             mCounter = RECYCLE_SECONDS;
-            ImageCache.getInstance().getResource(uri, true).thenCompose(SlideState::createTexture)
+            mDownload = ImageCache.getInstance().getResource(uri, true, this::getDistanceSqr);
+            mDownload.thenCompose(this::createTexture)
                     .thenAccept(frameTexture -> {
                         if (mState == State.LOADING) {
                             mSlide = Slide.make(frameTexture);
@@ -144,7 +242,10 @@ public final class SlideState {
                         }
                     }).exceptionally(e -> {
                         RenderSystem.recordRenderCall(() -> {
-                            assert mState == State.LOADING;
+                            if (mState != State.LOADING) {
+                                // timeout, and the download is cancelled
+                                return;
+                            }
                             mSlide = Slide.failed();
                             mState = State.FAILED_OR_EMPTY;
                             mCounter = RETRY_INTERVAL_SECONDS;
@@ -155,7 +256,9 @@ public final class SlideState {
     }
 
     @Nonnull
-    private Slide getWithUpdate() {
+    private Slide getWithUpdate(double distanceSqr) {
+        mDistanceSqr = distanceSqr;
+        mLastRenderTick = sAnimationTick;
         if (mState != State.FAILED_OR_EMPTY) {
             mCounter = RECYCLE_SECONDS;
         }
@@ -175,8 +278,9 @@ public final class SlideState {
                     mSlide.close();
                 } else if (mState == State.LOADING) {
                     assert mSlide == Slide.loading();
-                    // timeout
+                    // timeout, the download is dropped if it has not started yet
                     mState = State.LOADED;
+                    mDownload.cancel(false);
                 } else {
                     assert mSlide instanceof Slide.Icon;
                     assert mState == State.FAILED_OR_EMPTY;
@@ -199,49 +303,162 @@ public final class SlideState {
     /**
      * Decode image and create texture.
      *
-     * @param data compressed image data
+     * @param image compressed image data, direct and read-only
      * @return texture
      */
     @Nonnull
-    private static CompletableFuture<FrameTexture> createTexture(byte[] data) {
-        return CompletableFuture.supplyAsync(() -> {
+    private CompletableFuture<FrameTexture> createTexture(ImageData image) {
+        ByteBuffer data = image.data();
+        // slides of the same content share the texture, which is decoded and uploaded only once
+        // the hash is known from the name of the stored file, or computed on decoder threads
+        CompletableFuture<String> hashFuture = image.hash() != null
+                ? CompletableFuture.completedFuture(image.hash())
+                : CompletableFuture.supplyAsync(() -> hashOf(data), DECODER_EXECUTOR);
+        // decode on worker threads, only the texture upload is done on the render thread within the budget
+        return hashFuture.thenCompose(hash -> TextureRegistry.acquire(hash, () -> CompletableFuture
+                .supplyAsync(() -> decodeImage(data, hash, this::getDistanceSqr), DECODER_EXECUTOR)
+                .thenApplyAsync(SlideState::uploadImage, UploadScheduler.executor(this::getDistanceSqr))));
+    }
+
+    private double getDistanceSqr() {
+        return mDistanceSqr;
+    }
+
+    /**
+     * Decode image to CPU-side pixels, on decoder threads.
+     *
+     * @param data           compressed image data, direct and read-only
+     * @param hash           the SHA-1 of image data
+     * @param uploadPriority priority of uploading the frames of animated images
+     * @return the texture factory, which should be called on the render thread
+     */
+    @Nonnull
+    private static Supplier<FrameTexture> decodeImage(ByteBuffer data, String hash, DoubleSupplier uploadPriority) {
+        UploadScheduler.assertOffRenderThread();
+        long startTime = System.nanoTime();
+        try {
             if (isGif(data)) {
-                try (ByteArrayInputStream stream = new ByteArrayInputStream(data)) {
-                    GifDecoder gif = new GifDecoder();
-                    int status = gif.read(stream);
-                    if (status == GifDecoder.STATUS_OK) {
-                        return new GifTexture(gif, sMaxAnisotropic);
-                    } else {
-                        SlideShow.LOGGER.error("Failed to decode gif: {}", status);
-                    }
-                } catch (IOException exception) {
-                    SlideShow.LOGGER.error("Failed to read gif", exception);
+                StreamingGifDecoder gif = new StreamingGifDecoder();
+                gif.setRetainLimit(GIF_RETAIN_BYTES);
+                gif.setSnapshotLimit(GIF_SNAPSHOT_BYTES);
+                int status = gif.read(data);
+                if (status == GifDecoder.STATUS_OK && GIF_PARALLEL && gif.getFrameCount() > 1) {
+                    gif.decodeAll(DECODER_EXECUTOR);
+                }
+                // decode the first frame here, and later frames on decoder threads ahead of the playhead,
+                // so that only uploads are left to the render thread
+                GifFrameQueue frames = new GifFrameQueue(gif, DECODER_EXECUTOR);
+                if (status == GifDecoder.STATUS_OK && frames.prepare()) {
+                    return () -> new GifTexture(frames, sMaxAnisotropic, uploadPriority);
+                } else {
+                    SlideShow.LOGGER.error("Failed to decode gif: {}", status);
+                }
+            }
+            // compressed levels are cached by content, so the image is not decoded again
+            Path compressedPath = null;
+            if (sCompressionSupported) {
+                compressedPath = ImageCache.getInstance().getDerivedPath(hash, CompressedImage.SUFFIX);
+                CompressedImage compressed = CompressedImage.read(compressedPath);
+                if (compressed != null && Math.max(compressed.getWidth(), compressed.getHeight()) <= sMaxTextureSize) {
+                    return () -> new CompressedTexture(compressed, sMaxAnisotropic);
                 }
             }
-            // copy to native memory
-            ByteBuffer buffer = MemoryUtil.memAlloc(data.length)
-                    .put(data)
-                    .rewind();
+            // the mapped buffer is already in native memory
             // specify null to use image intrinsic format
-            try (NativeImage image = NativeImage.read(null, buffer)) {
-                return new NativeImageTexture(image, sMaxAnisotropic);
+            try {
+                NativeImage image = downscale(NativeImage.read(null, data));
+                // the image is closed by the texture once the factory is returned, and closed here otherwise
+                boolean returned = false;
+                try {
+                    if (compressedPath != null && Math.max(image.getWidth(), image.getHeight()) >= COMPRESSION_MIN_SIZE) {
+                        CompressedImage compressed = CompressedImage.compress(image);
+                        compressed.write(compressedPath);
+                        return () -> new CompressedTexture(compressed, sMaxAnisotropic);
+                    }
+                    MipLevels mips = null;
+                    if (CPU_MIPMAPS && MipLevels.isSupported(image)) {
+                        int width = image.getWidth(), height = image.getHeight();
+                        if (Math.max(width, height) >= MIP_CACHE_MIN_SIZE) {
+                            Path mipPath = ImageCache.getInstance().getDerivedPath(hash, MipLevels.SUFFIX);
+                            mips = MipLevels.read(mipPath, width, height);
+                            if (mips == null) {
+                                mips = MipLevels.generate(image);
+                                mips.write(mipPath);
+                            }
+                        } else {
+                            mips = MipLevels.generate(image);
+                        }
+                    }
+                    MipLevels finalMips = mips;
+                    returned = true;
+                    return () -> new NativeImageTexture(image, finalMips, sMaxAnisotropic);
+                } finally {
+                    if (!returned) {
+                        image.close();
+                    }
+                }
             } catch (Throwable t) {
                 throw new CompletionException(t);
-            } finally {
-                MemoryUtil.memFree(buffer);
             }
-        }, RENDER_EXECUTOR);
+        } finally {
+            SlideShow.LOGGER.debug("Decoded slide image in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
     }
 
-    public static boolean isGif(byte[] data) {
-        try (ByteArrayInputStream input = new ByteArrayInputStream(data)) {
-            Iterator<ImageReader> iter = ImageIO.getImageReaders(ImageIO.createImageInputStream(input));
-            return iter.hasNext() && iter.next().getFormatName().equalsIgnoreCase("gif");
-        } catch (IOException e) {
-            return false;
+    /**
+     * Downscales the image if it exceeds the max texture size, on decoder threads.
+     *
+     * @param image the image, which is closed if downscaled
+     * @return the image within the max texture size
+     */
+    @Nonnull
+    private static NativeImage downscale(NativeImage image) {
+        int width = image.getWidth(), height = image.getHeight(), maxSize = sMaxTextureSize;
+        if (width <= maxSize && height <= maxSize) {
+            return image;
+        }
+        double scale = (double) maxSize / Math.max(width, height);
+        int newWidth = Mth.clamp((int) Math.round(width * scale), 1, maxSize);
+        int newHeight = Mth.clamp((int) Math.round(height * scale), 1, maxSize);
+        try (image) {
+            // stb resizes with a proper filter, instead of sampling nearest pixels
+            NativeImage result = new NativeImage(image.format(), newWidth, newHeight, false);
+            image.resizeSubRectTo(0, 0, width, height, result);
+            SlideShow.LOGGER.debug("Downscaled slide image from {}x{} to {}x{}", width, height, newWidth, newHeight);
+            return result;
+        }
+    }
+
+    /**
+     * Upload decoded pixels to GPU, on the render thread.
+     */
+    @Nonnull
+    private static FrameTexture uploadImage(Supplier<FrameTexture> factory) {
+        long startTime = System.nanoTime();
+        try {
+            return factory.get();
+        } finally {
+            SlideShow.LOGGER.debug("Uploaded slide image in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
         }
     }
 
+    /**
+     * Computes the SHA-1 of image data, which is the same as the name of its cached file.
+     */
+    @Nonnull
+    private static String hashOf(ByteBuffer data) {
+        // noinspection UnstableApiUsage
+        @SuppressWarnings("deprecation") HashFunction hashFunction = Hashing.sha1();
+        return hashFunction.hashBytes(data.duplicate()).toString();
+    }
+
+    public static boolean isGif(ByteBuffer data) {
+        int pos = data.position();
+        return data.remaining() >= 6 && data.get(pos) == 'G' && data.get(pos + 1) == 'I' && data.get(pos + 2) == 'F';
+    }
+
     @Nullable
     public static URI createURI(String location) {
         if (StringUtils.isNotBlank(location)) {
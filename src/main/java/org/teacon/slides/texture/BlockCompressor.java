@@ -0,0 +1,176 @@
+package org.teacon.slides.texture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fast S3TC block encoder, which fits endpoints to a diagonal of the inset bounding box of each block.
+ * <p>
+ * Opaque images are encoded as BC1 (DXT1, 8 bytes per block), images with alpha are encoded
+ * as BC3 (DXT5, 16 bytes per block). The quality is lower than an exhaustive encoder, but it
+ * is fast enough to run while slides are loading.
+ */
+final class BlockCompressor {
+
+    private BlockCompressor() {
+    }
+
+    static int blockSize(boolean alpha) {
+        return alpha ? 16 : 8;
+    }
+
+    static int levelSize(boolean alpha, int width, int height) {
+        return ((width + 3) >> 2) * ((height + 3) >> 2) * blockSize(alpha);
+    }
+
+    /**
+     * Compresses a level of RGBA pixels.
+     *
+     * @param src RGBA pixels, tightly packed
+     * @param dst the buffer to write blocks in little-endian order
+     */
+    static void compress(ByteBuffer src, int width, int height, boolean alpha, ByteBuffer dst) {
+        byte[] block = new byte[64];
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                // edge pixels are repeated, the texels out of the level are ignored
+                for (int y = 0; y < 4; y++) {
+                    int row = Math.min(by + y, height - 1) * width;
+                    for (int x = 0; x < 4; x++) {
+                        int offset = (row + Math.min(bx + x, width - 1)) * 4;
+                        int i = (y * 4 + x) * 4;
+                        block[i] = src.get(offset);
+                        block[i + 1] = src.get(offset + 1);
+                        block[i + 2] = src.get(offset + 2);
+                        block[i + 3] = src.get(offset + 3);
+                    }
+                }
+                if (alpha) {
+                    encodeAlphaBlock(block, dst);
+                }
+                encodeColorBlock(block, dst);
+            }
+        }
+    }
+
+    private static void encodeColorBlock(byte[] block, ByteBuffer dst) {
+        int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+        for (int i = 0; i < 64; i += 4) {
+            int r = block[i] & 0xFF, g = block[i + 1] & 0xFF, b = block[i + 2] & 0xFF;
+            minR = Math.min(minR, r);
+            minG = Math.min(minG, g);
+            minB = Math.min(minB, b);
+            maxR = Math.max(maxR, r);
+            maxG = Math.max(maxG, g);
+            maxB = Math.max(maxB, b);
+        }
+        // inset the bounding box by 1/16 to reduce the error of interpolated colors
+        int insetR = (maxR - minR) >> 4, insetG = (maxG - minG) >> 4, insetB = (maxB - minB) >> 4;
+        maxR -= insetR;
+        maxG -= insetG;
+        maxB -= insetB;
+        minR += insetR;
+        minG += insetG;
+        minB += insetB;
+        // pick the diagonal of the box along the colors, red or blue could decrease as green increases
+        int centerR = (minR + maxR) >> 1, centerG = (minG + maxG) >> 1, centerB = (minB + maxB) >> 1;
+        int covR = 0, covB = 0;
+        for (int i = 0; i < 64; i += 4) {
+            int g = (block[i + 1] & 0xFF) - centerG;
+            covR += ((block[i] & 0xFF) - centerR) * g;
+            covB += ((block[i + 2] & 0xFF) - centerB) * g;
+        }
+        if (covR < 0) {
+            int t = minR;
+            minR = maxR;
+            maxR = t;
+        }
+        if (covB < 0) {
+            int t = minB;
+            minB = maxB;
+            maxB = t;
+        }
+        int c0 = to565(maxR, maxG, maxB);
+        int c1 = to565(minR, minG, minB);
+        if (c0 < c1) {
+            int t = c0;
+            c0 = c1;
+            c1 = t;
+        }
+        dst.putShort((short) c0);
+        dst.putShort((short) c1);
+        if (c0 == c1) {
+            dst.putInt(0);
+            return;
+        }
+        // the four-color mode, as c0 > c1
+        int[] palette = new int[12];
+        expand565(c0, palette, 0);
+        expand565(c1, palette, 3);
+        for (int c = 0; c < 3; c++) {
+            palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+            palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+        }
+        int indices = 0;
+        for (int i = 0; i < 16; i++) {
+            int r = block[i * 4] & 0xFF, g = block[i * 4 + 1] & 0xFF, b = block[i * 4 + 2] & 0xFF;
+            int best = 0, bestError = Integer.MAX_VALUE;
+            for (int k = 0; k < 4; k++) {
+                int dr = r - palette[k * 3], dg = g - palette[k * 3 + 1], db = b - palette[k * 3 + 2];
+                int error = dr * dr + dg * dg + db * db;
+                if (error < bestError) {
+                    best = k;
+                    bestError = error;
+                }
+            }
+            indices |= best << (i * 2);
+        }
+        dst.putInt(indices);
+    }
+
+    private static void encodeAlphaBlock(byte[] block, ByteBuffer dst) {
+        int min = 255, max = 0;
+        for (int i = 3; i < 64; i += 4) {
+            int a = block[i] & 0xFF;
+            min = Math.min(min, a);
+            max = Math.max(max, a);
+        }
+        dst.put((byte) max);
+        dst.put((byte) min);
+        long indices = 0;
+        if (max > min) {
+            // the eight-alpha mode, as a0 > a1
+            int[] palette = new int[8];
+            palette[0] = max;
+            palette[1] = min;
+            for (int k = 2; k < 8; k++) {
+                palette[k] = ((8 - k) * max + (k - 1) * min) / 7;
+            }
+            for (int i = 0; i < 16; i++) {
+                int a = block[i * 4 + 3] & 0xFF;
+                int best = 0, bestError = Integer.MAX_VALUE;
+                for (int k = 0; k < 8; k++) {
+                    int error = Math.abs(a - palette[k]);
+                    if (error < bestError) {
+                        best = k;
+                        bestError = error;
+                    }
+                }
+                indices |= (long) best << (i * 3);
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            dst.put((byte) (indices >>> (i * 8)));
+        }
+    }
+
+    private static int to565(int r, int g, int b) {
+        return ((r * 31 + 127) / 255) << 11 | ((g * 63 + 127) / 255) << 5 | ((b * 31 + 127) / 255);
+    }
+
+    private static void expand565(int c, int[] out, int offset) {
+        int r = (c >> 11) & 31, g = (c >> 5) & 63, b = c & 31;
+        out[offset] = (r << 3) | (r >> 2);
+        out[offset + 1] = (g << 2) | (g >> 4);
+        out[offset + 2] = (b << 3) | (b >> 2);
+    }
+}
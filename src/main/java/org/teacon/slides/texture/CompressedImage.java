@@ -0,0 +1,189 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.lwjgl.system.MemoryUtil;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block compressed pixels of an image with a full mip chain, which could be cached on disk.
+ * <p>
+ * The file starts with a header of six 32-bit integers (magic, version, alpha flag, width,
+ * height and level count), followed by the blocks of each level in order.
+ */
+public final class CompressedImage {
+
+    public static final String SUFFIX = "bcn";
+
+    private static final int MAGIC = 0x534C4243; // SLBC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final boolean mAlpha;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mLevels;
+    private final ByteBuffer mData;
+
+    private CompressedImage(boolean alpha, int width, int height, int levels, ByteBuffer data) {
+        mAlpha = alpha;
+        mWidth = width;
+        mHeight = height;
+        mLevels = levels;
+        mData = data;
+    }
+
+    /**
+     * Compresses the image with its mip levels generated on the CPU. The image is not closed.
+     */
+    @Nonnull
+    public static CompressedImage compress(@Nonnull NativeImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        ByteBuffer pixels = Mipmaps.expand(NativeImageTexture.getPointer(image),
+                width, height, image.format().components());
+        try {
+            boolean alpha = image.format().hasAlpha() && Mipmaps.hasAlpha(pixels);
+            return compress(pixels, width, height, alpha);
+        } finally {
+            MemoryUtil.memFree(pixels);
+        }
+    }
+
+    /**
+     * Compresses RGBA pixels with their mip levels generated on the CPU. The pixels are not freed.
+     *
+     * @param alpha whether to encode as BC3 instead of BC1
+     */
+    @Nonnull
+    static CompressedImage compress(@Nonnull ByteBuffer pixels, int width, int height, boolean alpha) {
+        int levels = Mipmaps.maxLevel(width, height) + 1;
+        ByteBuffer level = pixels;
+        try {
+            int size = 0;
+            for (int i = 0; i < levels; i++) {
+                size += BlockCompressor.levelSize(alpha, Mipmaps.levelSize(width, i), Mipmaps.levelSize(height, i));
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < levels; i++) {
+                int w = Mipmaps.levelSize(width, i), h = Mipmaps.levelSize(height, i);
+                if (i > 0) {
+                    ByteBuffer next = Mipmaps.downsample(level,
+                            Mipmaps.levelSize(width, i - 1), Mipmaps.levelSize(height, i - 1));
+                    if (level != pixels) {
+                        MemoryUtil.memFree(level);
+                    }
+                    level = next;
+                }
+                BlockCompressor.compress(level, w, h, alpha, data);
+            }
+            return new CompressedImage(alpha, width, height, levels, data.flip());
+        } finally {
+            if (level != pixels) {
+                MemoryUtil.memFree(level);
+            }
+        }
+    }
+
+    /**
+     * Maps a cached image.
+     *
+     * @return the image, or null if the file does not exist or is invalid
+     */
+    @Nullable
+    public static CompressedImage read(@Nonnull Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            boolean alpha = buffer.getInt() != 0;
+            int width = buffer.getInt(), height = buffer.getInt(), levels = buffer.getInt();
+            if (width <= 0 || height <= 0 || levels != Mipmaps.maxLevel(width, height) + 1) {
+                return null;
+            }
+            long size = 0;
+            for (int i = 0; i < levels; i++) {
+                size += BlockCompressor.levelSize(alpha, Mipmaps.levelSize(width, i), Mipmaps.levelSize(height, i));
+            }
+            if (buffer.remaining() != size) {
+                return null;
+            }
+            return new CompressedImage(alpha, width, height, levels, buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            SlideShow.LOGGER.warn("Failed to read compressed image {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the image to the path atomically, failures are logged and ignored.
+     */
+    public void write(@Nonnull Path path) {
+        try {
+            Files.createDirectories(path.getParent());
+            Path tmp = Files.createTempFile(path.getParent(), "slideshow-", ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                            .putInt(MAGIC).putInt(VERSION).putInt(mAlpha ? 1 : 0)
+                            .putInt(mWidth).putInt(mHeight).putInt(mLevels).flip();
+                    ByteBuffer data = mData.duplicate();
+                    while (header.hasRemaining() || data.hasRemaining()) {
+                        channel.write(new ByteBuffer[]{header, data});
+                    }
+                }
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            SlideShow.LOGGER.warn("Failed to write compressed image {}", path, e);
+        }
+    }
+
+    public boolean hasAlpha() {
+        return mAlpha;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getLevels() {
+        return mLevels;
+    }
+
+    /**
+     * Gets blocks of the given level.
+     */
+    @Nonnull
+    public ByteBuffer getLevel(int level) {
+        int offset = 0;
+        for (int i = 0; i < level; i++) {
+            offset += BlockCompressor.levelSize(mAlpha, Mipmaps.levelSize(mWidth, i), Mipmaps.levelSize(mHeight, i));
+        }
+        int size = BlockCompressor.levelSize(mAlpha, Mipmaps.levelSize(mWidth, level), Mipmaps.levelSize(mHeight, level));
+        return mData.slice(offset, size);
+    }
+
+    public long getSize() {
+        return mData.remaining();
+    }
+}
@@ -0,0 +1,61 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import org.lwjgl.opengl.GL46C;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+import static org.lwjgl.opengl.GL11C.*;
+import static org.lwjgl.opengl.GL12C.*;
+import static org.lwjgl.opengl.GL13C.glCompressedTexImage2D;
+import static org.lwjgl.opengl.GL14C.GL_TEXTURE_LOD_BIAS;
+
+public final class CompressedTexture implements FrameTexture {
+    private int texture;
+    private final long textureBytes;
+
+    public CompressedTexture(CompressedImage image, float sMaxAnisotropic) {
+        texture = glGenTextures();
+        final int maxLevel = image.getLevels() - 1;
+
+        GlStateManager._bindTexture(texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_LOD, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LOD, maxLevel);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, maxLevel);
+        glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_LOD_BIAS, 0.0F);
+        if (sMaxAnisotropic > 0) {
+            glTexParameterf(GL_TEXTURE_2D, GL46C.GL_TEXTURE_MAX_ANISOTROPY, sMaxAnisotropic);
+        }
+
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+        // all levels are compressed on the CPU, since mipmaps cannot be generated for compressed formats
+        int internalFormat = image.hasAlpha() ? GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+        for (int level = 0; level <= maxLevel; ++level) {
+            glCompressedTexImage2D(GL_TEXTURE_2D, level, internalFormat,
+                    Mipmaps.levelSize(image.getWidth(), level), Mipmaps.levelSize(image.getHeight(), level),
+                    0, image.getLevel(level));
+        }
+        TextureMemory.allocate(textureBytes = image.getSize());
+    }
+
+    @Override
+    public int currentTextureID(long tick, float partialTick) {
+        return texture;
+    }
+
+    @Override
+    public void release() {
+        int textureID = texture;
+        if (textureID > -1) {
+            GlStateManager._deleteTexture(textureID);
+            TextureMemory.free(textureBytes);
+            texture = -1;
+        }
+    }
+}
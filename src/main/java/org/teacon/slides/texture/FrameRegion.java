@@ -0,0 +1,9 @@
+package org.teacon.slides.texture;
+
+/**
+ * The region of a frame in its texture, in normalized texture coordinates.
+ */
+public record FrameRegion(float u0, float v0, float u1, float v1) {
+
+    public static final FrameRegion FULL = new FrameRegion(0, 0, 1, 1);
+}
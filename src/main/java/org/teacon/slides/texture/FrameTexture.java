@@ -1,8 +1,22 @@
 package org.teacon.slides.texture;
 
-public sealed interface FrameTexture permits NativeImageTexture, GifTexture {
+public sealed interface FrameTexture permits NativeImageTexture, GifTexture, CompressedTexture, SharedTexture {
 
     int currentTextureID(long tick, float partialTick);
 
+    /**
+     * Gets the region of the frame returned by the last {@link #currentTextureID(long, float)} call,
+     * frames may be packed in the same texture.
+     */
+    default FrameRegion currentRegion() {
+        return FrameRegion.FULL;
+    }
+
+    /**
+     * Releases the part of texture memory which could be restored on demand.
+     */
+    default void trim() {
+    }
+
     void release();
 }
@@ -0,0 +1,54 @@
+package org.teacon.slides.texture;
+
+/**
+ * Start times of the frames of an animated image, and the lookup of the frame displayed at a time.
+ */
+final class FrameTimeline {
+
+    private final long[] mStartTimes;
+    private final long mDuration;
+
+    private int mLastIndex = -1;
+
+    /**
+     * @param delays display durations of frames in milliseconds, which could be zero
+     */
+    FrameTimeline(int[] delays) {
+        mStartTimes = new long[delays.length];
+        long time = 0;
+        for (int i = 0; i < delays.length; i++) {
+            mStartTimes[i] = time;
+            time += delays[i];
+        }
+        mDuration = time;
+    }
+
+    long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Finds the first frame whose start time is not before the given time, or the first frame if none.
+     * The last index is checked first, since it is usually unchanged between render calls.
+     */
+    int frameAt(long time) {
+        long[] start = mStartTimes;
+        int last = mLastIndex;
+        if (last >= 0 && start[last] >= time && (last == 0 || start[last - 1] < time)) {
+            return last;
+        }
+        int low = 0, high = start.length - 1;
+        if (start[high] < time) {
+            return mLastIndex = 0;
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (start[mid] >= time) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return mLastIndex = low;
+    }
+}
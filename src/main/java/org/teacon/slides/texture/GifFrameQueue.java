@@ -0,0 +1,169 @@
+package org.teacon.slides.texture;
+
+import org.lwjgl.system.MemoryUtil;
+import org.teacon.slides.SlideShow;
+import org.teacon.slides.StreamingGifDecoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Decodes frames of an animated image on decoder threads, ahead of the playhead.
+ * <p>
+ * The decoder composites each frame onto the previous ones and is not thread safe, so requested
+ * frames are decoded one at a time, in the order requested, which is usually the playback order.
+ * Seeking backwards starts from the nearest keyframe snapshot of the decoder. Decoded frames are
+ * converted to RGBA pixels in native memory, and only these ready pixels are handed to the render
+ * thread for uploading.
+ */
+public final class GifFrameQueue {
+
+    private final StreamingGifDecoder mGif;
+    private final Executor mExecutor;
+
+    // guarded by this
+    private final ArrayDeque<Request> mRequests = new ArrayDeque<>();
+    private boolean mRunning;
+    private boolean mClosed;
+
+    private Frame mFirstFrame;
+
+    public GifFrameQueue(StreamingGifDecoder gif, Executor executor) {
+        mGif = gif;
+        mExecutor = executor;
+    }
+
+    /**
+     * Decodes the first frame on the calling thread, which must be a decoder thread, and keeps it
+     * for the texture to upload at once.
+     *
+     * @return false if the first frame could not be decoded
+     */
+    public boolean prepare() {
+        mFirstFrame = decode(0);
+        return mFirstFrame != null;
+    }
+
+    int getWidth() {
+        return mGif.getWidth();
+    }
+
+    int getHeight() {
+        return mGif.getHeight();
+    }
+
+    int getFrameCount() {
+        return mGif.getFrameCount();
+    }
+
+    int getDelay(int index) {
+        return mGif.getDelay(index);
+    }
+
+    /**
+     * Takes the first frame decoded by {@link #prepare()}, which is owned by the caller.
+     */
+    Frame takeFirstFrame() {
+        Frame frame = Objects.requireNonNull(mFirstFrame);
+        mFirstFrame = null;
+        return frame;
+    }
+
+    /**
+     * Requests a frame to be decoded on decoder threads.
+     *
+     * @param callback called on a decoder thread with the frame, which is owned by the callback,
+     *                 or null if the frame could not be decoded
+     */
+    void request(int index, Consumer<Frame> callback) {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mRequests.add(new Request(index, callback));
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        mExecutor.execute(this::decodeNext);
+    }
+
+    /**
+     * Drops pending requests, the frame being decoded is still passed to its callback.
+     */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            mRequests.clear();
+        }
+    }
+
+    /**
+     * Decodes one requested frame, and schedules the next one, so that decoders of other images
+     * are not starved.
+     */
+    private void decodeNext() {
+        Request request;
+        synchronized (this) {
+            request = mRequests.poll();
+            if (request == null) {
+                mRunning = false;
+                return;
+            }
+        }
+        try {
+            request.callback.accept(decode(request.index));
+        } finally {
+            mExecutor.execute(this::decodeNext);
+        }
+    }
+
+    private Frame decode(int index) {
+        ByteBuffer buffer = null;
+        try {
+            UploadScheduler.assertOffRenderThread();
+            int[] pixels = mGif.decodeFrame(index);
+            if (pixels == null) {
+                SlideShow.LOGGER.warn("Failed to decode gif frame {}", index);
+                return null;
+            }
+            boolean hasAlpha = false;
+            buffer = MemoryUtil.memAlloc(pixels.length * 4);
+            for (int pixel : pixels) {
+                hasAlpha |= (pixel >>> 24) < 0xFF;
+                buffer.put((byte) ((pixel >> 16) & 0xFF)); // Red component
+                buffer.put((byte) ((pixel >> 8) & 0xFF)); // Green component
+                buffer.put((byte) (pixel & 0xFF)); // Blue component
+                buffer.put((byte) ((pixel >> 24) & 0xFF)); // Alpha component
+            }
+            buffer.flip();
+            Frame frame = new Frame(buffer, hasAlpha);
+            buffer = null;
+            return frame;
+        } catch (Throwable t) {
+            SlideShow.LOGGER.warn("Failed to decode gif frame {}", index, t);
+            return null;
+        } finally {
+            if (buffer != null) {
+                MemoryUtil.memFree(buffer);
+            }
+        }
+    }
+
+    /**
+     * RGBA pixels of a decoded frame in native memory, which should be freed by {@link #free()}.
+     */
+    record Frame(ByteBuffer pixels, boolean hasAlpha) {
+
+        void free() {
+            MemoryUtil.memFree(pixels);
+        }
+    }
+
+    private record Request(int index, Consumer<Frame> callback) {
+    }
+}
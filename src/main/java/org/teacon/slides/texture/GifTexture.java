@@ -2,139 +2,380 @@ package org.teacon.slides.texture;
 
 import com.mojang.blaze3d.platform.GlStateManager;
 import net.minecraft.util.Mth;
-import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL46C;
-import org.teacon.slides.GifDecoder;
+import org.lwjgl.system.MemoryUtil;
+import org.teacon.slides.SlideShow;
 
-import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.function.DoubleSupplier;
 
 import static org.lwjgl.opengl.GL11C.*;
 import static org.lwjgl.opengl.GL12C.*;
 import static org.lwjgl.opengl.GL14C.GL_TEXTURE_LOD_BIAS;
-import static org.lwjgl.opengl.GL30C.glGenerateMipmap;
 
 public final class GifTexture implements FrameTexture {
     private static final int TICK_AS_MILLIS = 1000 / 20;
 
+    private static final int PENDING = -3;
+
+    // frames ahead of the playhead to upload within the budget
+    private static final int PREFETCH_FRAMES = Integer.getInteger("slideshow.gif.prefetchFrames", 4);
+
+    // pack all frames into one texture when they fit, so that all frames share the same render type
+    private static final boolean ATLAS = Boolean.parseBoolean(System.getProperty("slideshow.gif.atlas", "true"));
+    // cells are aligned to 2^ATLAS_MAX_LEVEL, and padded by at least that many texels so that
+    // mip levels and anisotropic samples of adjacent frames never mix
+    private static final int ATLAS_MAX_LEVEL = 4;
+
+    private static long sOnTimeFrames;
+    private static long sLateFrames;
+
     private final int[] textures;
-    private final long[] delay;
-    private final long duration;
+    private final long[] textureBytes;
+    private final FrameTimeline timeline;
     private final float sMaxAnisotropic;
-    private final GifDecoder gif;
+    private final GifFrameQueue gif;
+    private final Executor uploadExecutor;
+
+    private int atlas = -1;
+    private long atlasBytes;
+    private int atlasLevels, atlasColumns, cellWidth, cellHeight;
+    private FrameRegion[] regions;
 
-    public GifTexture(GifDecoder gif, float sMaxAnisotropic) {
+    private int lastTexture = -1;
+    private int lastIndex = -1;
+    private int displayedFrame;
+    private boolean released;
+
+    public GifTexture(GifFrameQueue gif, float sMaxAnisotropic, DoubleSupplier uploadPriority) {
         this.sMaxAnisotropic = sMaxAnisotropic;
-        delay = new long[gif.getFrameCount()];
-        long time = 0;
-        for (int i = 0; i < gif.getFrameCount(); i++) {
-            delay[i] = time;
-            time += gif.getDelay(i);
+        this.uploadExecutor = UploadScheduler.executor(uploadPriority);
+        int[] delays = new int[gif.getFrameCount()];
+        for (int i = 0; i < delays.length; i++) {
+            delays[i] = gif.getDelay(i);
         }
         this.gif = gif;
-        duration = time;
+        timeline = new FrameTimeline(delays);
         textures = new int[gif.getFrameCount()];
+        textureBytes = new long[gif.getFrameCount()];
         Arrays.fill(textures, -1);
+        if (ATLAS && textures.length > 1) {
+            createAtlas();
+        }
+        // the constructor is called within the upload budget, so upload the first frame here
+        if (textures.length > 0) {
+            textures[0] = uploadFrame(0, gif.takeFirstFrame());
+            lastTexture = Math.max(textures[0], -1);
+        }
     }
 
-    private int uploadFrame(BufferedImage image) {
+    /**
+     * Allocates a texture with a grid of cells for all frames, if it fits in the max texture size and
+     * a part of the memory budget. Frames are still uploaded on demand into their own cells.
+     */
+    private void createAtlas() {
+        int width = gif.getWidth();
+        int height = gif.getHeight();
+        int levels = Math.min(ATLAS_MAX_LEVEL, 31 - Integer.numberOfLeadingZeros(Math.max(width, height)));
+        int mask = (1 << levels) - 1;
+        int cellW = (width + (1 << levels) + mask) & ~mask;
+        int cellH = (height + (1 << levels) + mask) & ~mask;
+        int maxSize = glGetInteger(GL_MAX_TEXTURE_SIZE);
+        int columns = Math.min(textures.length, maxSize / Math.max(cellW, 1));
+        if (columns <= 0) {
+            return;
+        }
+        int rows = (textures.length + columns - 1) / columns;
+        int atlasW = columns * cellW;
+        int atlasH = rows * cellH;
+        long bytes = TextureMemory.estimate(atlasW, atlasH, 4);
+        if (atlasH > maxSize || bytes > TextureMemory.getBudgetBytes() / 4) {
+            return;
+        }
+
+        atlas = glGenTextures();
+        GlStateManager._bindTexture(atlas);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_LOD, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LOD, levels);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels);
+        glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_LOD_BIAS, 0.0F);
+        if (sMaxAnisotropic > 0) {
+            glTexParameterf(GL_TEXTURE_2D, GL46C.GL_TEXTURE_MAX_ANISOTROPY, sMaxAnisotropic);
+        }
+        for (int level = 0; level <= levels; ++level) {
+            glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA8, atlasW >> level, atlasH >> level, 0, GL_RED, GL_UNSIGNED_BYTE, (IntBuffer) null);
+        }
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        TextureMemory.allocate(atlasBytes = bytes);
+
+        atlasLevels = levels;
+        atlasColumns = columns;
+        cellWidth = cellW;
+        cellHeight = cellH;
+        regions = new FrameRegion[textures.length];
+        for (int i = 0; i < textures.length; i++) {
+            int x = i % columns * cellW, y = i / columns * cellH;
+            regions[i] = new FrameRegion((float) x / atlasW, (float) y / atlasH,
+                    (float) (x + width) / atlasW, (float) (y + height) / atlasH);
+        }
+    }
+
+    /**
+     * Uploads a frame into its cell of the atlas, with mip levels downsampled on the CPU,
+     * since generating mipmaps would process the whole atlas. Edge pixels are extended to
+     * the padding of the cell so that filtering does not bleed.
+     */
+    private void uploadCell(int index, ByteBuffer pixels, int width, int height) {
+        ByteBuffer buffer = MemoryUtil.memAlloc(cellWidth * cellHeight * 4);
+        ByteBuffer mip = buffer;
         try {
-            int width = image.getWidth();
-            int height = image.getHeight();
-            int[] pixels = new int[width * height];
-            image.getRGB(0, 0, width, height, pixels, 0, width);
-            boolean hasAlpha = false;
-            if (image.getColorModel().hasAlpha()) {
-                for (int pixel : pixels) {
-                    if ((pixel >> 24 & 0xFF) < 0xFF) {
-                        hasAlpha = true;
-                        break;
-                    }
-                }
-            }
-            int bytesPerPixel = hasAlpha ? 4 : 3;
-            ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * bytesPerPixel);
-            for (int pixel : pixels) {
-                buffer.put((byte) ((pixel >> 16) & 0xFF)); // Red component
-                buffer.put((byte) ((pixel >> 8) & 0xFF)); // Green component
-                buffer.put((byte) (pixel & 0xFF)); // Blue component
-                if (hasAlpha) {
-                    buffer.put((byte) ((pixel >> 24) & 0xFF)); // Alpha component. Only for RGBA
+            for (int y = 0; y < cellHeight; y++) {
+                int row = Math.min(y, height - 1) * width;
+                for (int x = 0; x < cellWidth; x++) {
+                    buffer.putInt(pixels.getInt((row + Math.min(x, width - 1)) * 4));
                 }
             }
             buffer.flip();
 
-            final int texture = glGenTextures();
-            final int maxLevel = 31 - Integer.numberOfLeadingZeros(Math.max(width, height));
-
-            GlStateManager._bindTexture(texture);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_LOD, 0);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LOD, maxLevel);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, maxLevel);
-            glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_LOD_BIAS, 0.0F);
-            if (sMaxAnisotropic > 0) {
-                glTexParameterf(GL_TEXTURE_2D, GL46C.GL_TEXTURE_MAX_ANISOTROPY, sMaxAnisotropic);
+            GlStateManager._bindTexture(atlas);
+            glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+            glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
+            glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+            int x = index % atlasColumns * cellWidth, y = index / atlasColumns * cellHeight;
+            for (int level = 0; level <= atlasLevels; ++level) {
+                int w = cellWidth >> level, h = cellHeight >> level;
+                if (level > 0) {
+                    ByteBuffer next = Mipmaps.downsample(mip, w * 2, h * 2);
+                    if (mip != buffer) {
+                        MemoryUtil.memFree(mip);
+                    }
+                    mip = next;
+                }
+                long address = MemoryUtil.memAddress(mip);
+                if (!PixelBufferRing.upload(level, x >> level, y >> level, w, h, GL_RGBA, address, w * h * 4L)) {
+                    glTexSubImage2D(GL_TEXTURE_2D, level, x >> level, y >> level, w, h, GL_RGBA, GL_UNSIGNED_BYTE, address);
+                }
             }
+        } finally {
+            if (mip != buffer) {
+                MemoryUtil.memFree(mip);
+            }
+            MemoryUtil.memFree(buffer);
+        }
+    }
 
-            int internalFormat = hasAlpha ? GL_RGBA8 : GL_RGB8;
-            for (int level = 0; level <= maxLevel; ++level) {
-                glTexImage2D(GL_TEXTURE_2D, level, internalFormat, width >> level, height >> level, 0, GL_RED, GL_UNSIGNED_BYTE, (IntBuffer) null);
+    /**
+     * Uploads a frame decoded on decoder threads, and frees its pixels.
+     */
+    private int uploadFrame(int index, GifFrameQueue.Frame frame) {
+        try {
+            int width = gif.getWidth();
+            int height = gif.getHeight();
+            if (atlas != -1) {
+                uploadCell(index, frame.pixels(), width, height);
+                return atlas;
             }
+            boolean hasAlpha = frame.hasAlpha();
+            int bytesPerPixel = hasAlpha ? 4 : 3;
+            // mip levels are downsampled as RGBA, and opaque frames are still stored as RGB
+            ByteBuffer buffer = frame.pixels();
+            ByteBuffer mip = buffer;
+            try {
+                final int texture = glGenTextures();
+                final int maxLevel = Mipmaps.maxLevel(width, height);
 
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+                GlStateManager._bindTexture(texture);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_LOD, 0);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LOD, maxLevel);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, maxLevel);
+                glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_LOD_BIAS, 0.0F);
+                if (sMaxAnisotropic > 0) {
+                    glTexParameterf(GL_TEXTURE_2D, GL46C.GL_TEXTURE_MAX_ANISOTROPY, sMaxAnisotropic);
+                }
 
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+                int internalFormat = hasAlpha ? GL_RGBA8 : GL_RGB8;
+                for (int level = 0; level <= maxLevel; ++level) {
+                    glTexImage2D(GL_TEXTURE_2D, level, internalFormat,
+                            Mipmaps.levelSize(width, level), Mipmaps.levelSize(height, level),
+                            0, GL_RED, GL_UNSIGNED_BYTE, (IntBuffer) null);
+                }
 
-            // specify 0 to use width * bbp
-            glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
 
-            glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
-            glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
 
-            // specify pixel row alignment to 1
-            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+                // specify 0 to use width * bbp
+                glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+
+                glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
+                glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
 
-            GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, hasAlpha ? GL11.GL_RGBA8 : GL11.GL_RGB8, width, height, 0, hasAlpha ? GL11.GL_RGBA : GL11.GL_RGB, GL11.GL_UNSIGNED_BYTE, buffer);
+                // specify pixel row alignment to 1
+                glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 
-            // auto generate mipmap
-            glGenerateMipmap(GL_TEXTURE_2D);
-            return texture;
-        } catch (Throwable e) {
+                // upload levels downsampled on the CPU, like frames in the atlas, instead of generating them here
+                for (int level = 0; level <= maxLevel; ++level) {
+                    int w = Mipmaps.levelSize(width, level), h = Mipmaps.levelSize(height, level);
+                    if (level > 0) {
+                        ByteBuffer next = Mipmaps.downsample(mip,
+                                Mipmaps.levelSize(width, level - 1), Mipmaps.levelSize(height, level - 1));
+                        if (mip != buffer) {
+                            MemoryUtil.memFree(mip);
+                        }
+                        mip = next;
+                    }
+                    // prefer streaming through pixel buffers, and fallback to client memory
+                    long address = MemoryUtil.memAddress(mip);
+                    if (!PixelBufferRing.upload(level, 0, 0, w, h, GL_RGBA, address, w * h * 4L)) {
+                        glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, address);
+                    }
+                }
+                TextureMemory.allocate(textureBytes[index] = TextureMemory.estimate(width, height, bytesPerPixel));
+                return texture;
+            } finally {
+                if (mip != buffer) {
+                    MemoryUtil.memFree(mip);
+                }
+            }
+        } catch (Throwable t) {
+            SlideShow.LOGGER.error("Failed to upload gif frame {}", index, t);
             return -2;
+        } finally {
+            frame.free();
         }
     }
 
     @Override
     public int currentTextureID(long tick, float partialTick) {
+        long duration = timeline.getDuration();
         long time = duration > 0 ? (tick * TICK_AS_MILLIS + Mth.floor(partialTick * TICK_AS_MILLIS)) % duration : 0;
-        int index = 0;
-        for (int i = 0; i < delay.length; i++) {
-            if (delay[i] >= time) {
-                index = i;
-                break;
+        int index = timeline.frameAt(time);
+        boolean advanced = index != lastIndex;
+        if (advanced) {
+            lastIndex = index;
+            if (textures[index] > 0) {
+                sOnTimeFrames++;
+            } else {
+                sLateFrames++;
             }
         }
         if (textures[index] == -1) {
-            textures[index] = uploadFrame(gif.getFrame(index));
+            // keep displaying the last frame until this frame is decoded and uploaded within the budget
+            scheduleUpload(index);
+        }
+        if (advanced) {
+            prefetch(index);
+        }
+        if (textures[index] == PENDING) {
+            return lastTexture;
         }
         if (textures[index] == -2) {
             return -1;
         }
-        return textures[index];
+        displayedFrame = index;
+        return lastTexture = textures[index];
+    }
+
+    @Override
+    public FrameRegion currentRegion() {
+        return regions != null ? regions[displayedFrame] : FrameRegion.FULL;
+    }
+
+    /**
+     * Requests a frame to be decoded on decoder threads, and uploads it within the budget once ready.
+     */
+    private void scheduleUpload(int index) {
+        textures[index] = PENDING;
+        gif.request(index, frame -> uploadExecutor.execute(() -> {
+            if (frame == null) {
+                if (textures[index] == PENDING) {
+                    textures[index] = -2;
+                }
+            } else if (released || textures[index] != PENDING) {
+                frame.free();
+            } else {
+                textures[index] = uploadFrame(index, frame);
+            }
+        }));
+    }
+
+    /**
+     * Schedules decoding and uploads of frames ahead of the playhead, so they are ready before being displayed.
+     * When the texture memory is tight, frames behind the playhead are released instead.
+     */
+    private void prefetch(int index) {
+        int ahead = Math.min(PREFETCH_FRAMES, textures.length - 1);
+        for (int i = 1; i <= ahead; i++) {
+            int frame = (index + i) % textures.length;
+            if (textures[frame] == -1) {
+                scheduleUpload(frame);
+            }
+        }
+        if (atlas == -1 && TextureMemory.isOverBudget()) {
+            for (int i = ahead + 1; i < textures.length; i++) {
+                int frame = (index + i) % textures.length;
+                if (textures[frame] > 0 && textures[frame] != lastTexture) {
+                    releaseFrame(frame);
+                }
+            }
+        }
+    }
+
+    public static long getOnTimeFrames() {
+        return sOnTimeFrames;
+    }
+
+    public static long getLateFrames() {
+        return sLateFrames;
+    }
+
+    @Override
+    public void trim() {
+        if (atlas != -1) {
+            return; // frames share the same texture
+        }
+        // frames other than the displayed one are uploaded again on demand
+        for (int i = 0; i < textures.length; i++) {
+            if (textures[i] > 0 && textures[i] != lastTexture) {
+                releaseFrame(i);
+            }
+        }
     }
 
     @Override
     public void release() {
-        for (int texture : textures) {
-            if (texture > 0) {
-                GlStateManager._deleteTexture(texture);
+        released = true;
+        gif.close();
+        if (atlas != -1) {
+            GlStateManager._deleteTexture(atlas);
+            TextureMemory.free(atlasBytes);
+            Arrays.fill(textures, -1);
+            atlas = -1;
+            return;
+        }
+        for (int i = 0; i < textures.length; i++) {
+            if (textures[i] > 0) {
+                releaseFrame(i);
             }
         }
     }
+
+    private void releaseFrame(int index) {
+        GlStateManager._deleteTexture(textures[index]);
+        TextureMemory.free(textureBytes[index]);
+        textureBytes[index] = 0;
+        textures[index] = -1;
+    }
 }
@@ -0,0 +1,148 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.lwjgl.system.MemoryUtil;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RGBA pixels of mip levels (except the base level) of an image, which could be cached on disk.
+ * <p>
+ * The base level is not included, since it is always decoded from the image itself. The file starts
+ * with a header of five 32-bit integers (magic, version, width, height and level count), followed by
+ * the pixels of each level in order.
+ */
+public final class MipLevels {
+
+    public static final String SUFFIX = "mip";
+
+    private static final int MAGIC = 0x534C4D50; // SLMP
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mLevels;
+    private final ByteBuffer mData;
+
+    private MipLevels(int width, int height, int levels, ByteBuffer data) {
+        mWidth = width;
+        mHeight = height;
+        mLevels = levels;
+        mData = data;
+    }
+
+    /**
+     * Checks whether mip levels could be generated on the CPU, which requires RGB or RGBA images.
+     */
+    public static boolean isSupported(@Nonnull NativeImage image) {
+        return image.format().components() >= 3 && Mipmaps.maxLevel(image.getWidth(), image.getHeight()) > 0;
+    }
+
+    /**
+     * Generates mip levels of the image with a box filter. The image is not closed.
+     */
+    @Nonnull
+    public static MipLevels generate(@Nonnull NativeImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        int levels = Mipmaps.maxLevel(width, height) + 1;
+        ByteBuffer data = ByteBuffer.allocateDirect(dataSize(width, height, levels));
+        ByteBuffer level = Mipmaps.expand(NativeImageTexture.getPointer(image),
+                width, height, image.format().components());
+        try {
+            for (int i = 1; i < levels; i++) {
+                ByteBuffer next = Mipmaps.downsample(level,
+                        Mipmaps.levelSize(width, i - 1), Mipmaps.levelSize(height, i - 1));
+                MemoryUtil.memFree(level);
+                level = next;
+                data.put(level.duplicate());
+            }
+        } finally {
+            MemoryUtil.memFree(level);
+        }
+        return new MipLevels(width, height, levels, data.flip());
+    }
+
+    /**
+     * Maps cached mip levels.
+     *
+     * @return the mip levels, or null if the file does not exist or does not match the image size
+     */
+    @Nullable
+    public static MipLevels read(@Nonnull Path path, int width, int height) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int levels = Mipmaps.maxLevel(width, height) + 1;
+            if (buffer.getInt() != width || buffer.getInt() != height || buffer.getInt() != levels ||
+                    buffer.remaining() != dataSize(width, height, levels)) {
+                return null;
+            }
+            return new MipLevels(width, height, levels, buffer.slice());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            SlideShow.LOGGER.warn("Failed to read mip levels {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes mip levels to the path atomically, failures are logged and ignored.
+     */
+    public void write(@Nonnull Path path) {
+        try {
+            Files.createDirectories(path.getParent());
+            Path tmp = Files.createTempFile(path.getParent(), "slideshow-", ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                            .putInt(MAGIC).putInt(VERSION).putInt(mWidth).putInt(mHeight).putInt(mLevels).flip();
+                    ByteBuffer data = mData.duplicate();
+                    while (header.hasRemaining() || data.hasRemaining()) {
+                        channel.write(new ByteBuffer[]{header, data});
+                    }
+                }
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            SlideShow.LOGGER.warn("Failed to write mip levels {}", path, e);
+        }
+    }
+
+    public int getLevels() {
+        return mLevels;
+    }
+
+    /**
+     * Gets RGBA pixels of the given level, which should not be the base level.
+     */
+    @Nonnull
+    public ByteBuffer getLevel(int level) {
+        int offset = dataSize(mWidth, mHeight, level);
+        int size = Mipmaps.levelSize(mWidth, level) * Mipmaps.levelSize(mHeight, level) * 4;
+        return mData.slice(offset, size);
+    }
+
+    private static int dataSize(int width, int height, int levels) {
+        int size = 0;
+        for (int i = 1; i < levels; i++) {
+            size += Mipmaps.levelSize(width, i) * Mipmaps.levelSize(height, i) * 4;
+        }
+        return size;
+    }
+}
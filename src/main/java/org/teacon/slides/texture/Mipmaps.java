@@ -0,0 +1,92 @@
+package org.teacon.slides.texture;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Generates mip levels of RGBA pixels on the CPU.
+ */
+final class Mipmaps {
+
+    private Mipmaps() {
+    }
+
+    static int maxLevel(int width, int height) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    static int levelSize(int size, int level) {
+        return Math.max(1, size >> level);
+    }
+
+    /**
+     * Expands pixels of any component count to RGBA, luminance is replicated to RGB.
+     *
+     * @param address    the address of pixels in native memory
+     * @param components 1 (luminance), 2 (luminance alpha), 3 (RGB) or 4 (RGBA)
+     * @return RGBA pixels in native memory, which should be freed by {@link MemoryUtil#memFree}
+     */
+    static ByteBuffer expand(long address, int width, int height, int components) {
+        int count = width * height;
+        ByteBuffer dst = MemoryUtil.memAlloc(count * 4);
+        if (components == 4) {
+            MemoryUtil.memCopy(address, MemoryUtil.memAddress(dst), count * 4L);
+            return dst;
+        }
+        ByteBuffer src = MemoryUtil.memByteBuffer(address, count * components);
+        for (int i = 0, j = 0; i < count; i++, j += components) {
+            byte r, g, b, a;
+            switch (components) {
+                case 1 -> {
+                    r = g = b = src.get(j);
+                    a = (byte) 0xFF;
+                }
+                case 2 -> {
+                    r = g = b = src.get(j);
+                    a = src.get(j + 1);
+                }
+                default -> {
+                    r = src.get(j);
+                    g = src.get(j + 1);
+                    b = src.get(j + 2);
+                    a = (byte) 0xFF;
+                }
+            }
+            dst.put(i * 4, r).put(i * 4 + 1, g).put(i * 4 + 2, b).put(i * 4 + 3, a);
+        }
+        return dst;
+    }
+
+    static boolean hasAlpha(ByteBuffer rgba) {
+        for (int i = 3, e = rgba.limit(); i < e; i += 4) {
+            if (rgba.get(i) != (byte) 0xFF) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Downsamples RGBA pixels to the next level with a box filter, edge pixels are repeated for odd sizes.
+     *
+     * @return RGBA pixels in native memory, which should be freed by {@link MemoryUtil#memFree}
+     */
+    static ByteBuffer downsample(ByteBuffer src, int width, int height) {
+        int w = Math.max(1, width >> 1), h = Math.max(1, height >> 1);
+        ByteBuffer dst = MemoryUtil.memAlloc(w * h * 4);
+        for (int y = 0; y < h; y++) {
+            int row0 = Math.min(y * 2, height - 1) * width, row1 = Math.min(y * 2 + 1, height - 1) * width;
+            for (int x = 0; x < w; x++) {
+                int col0 = Math.min(x * 2, width - 1), col1 = Math.min(x * 2 + 1, width - 1);
+                int p00 = (row0 + col0) * 4, p01 = (row0 + col1) * 4, p10 = (row1 + col0) * 4, p11 = (row1 + col1) * 4;
+                for (int c = 0; c < 4; c++) {
+                    int sum = (src.get(p00 + c) & 0xFF) + (src.get(p01 + c) & 0xFF)
+                            + (src.get(p10 + c) & 0xFF) + (src.get(p11 + c) & 0xFF);
+                    dst.put((y * w + x) * 4 + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+        return dst;
+    }
+}
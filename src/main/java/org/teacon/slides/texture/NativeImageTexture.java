@@ -4,8 +4,11 @@ import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.platform.NativeImage;
 import net.minecraftforge.fml.util.ObfuscationReflectionHelper;
 import org.lwjgl.opengl.GL46C;
+import org.lwjgl.system.MemoryUtil;
 
+import javax.annotation.Nullable;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 
 import static org.lwjgl.opengl.GL11C.*;
@@ -16,12 +19,20 @@ import static org.lwjgl.opengl.GL30C.glGenerateMipmap;
 public final class NativeImageTexture implements FrameTexture {
     private static final Field IMAGE_PIXELS;
     private int texture;
+    private long textureBytes;
 
     static {
         IMAGE_PIXELS = ObfuscationReflectionHelper.findField(NativeImage.class, "f_84964_"); // pixels
     }
 
     public NativeImageTexture(NativeImage image, float sMaxAnisotropic) {
+        this(image, null, sMaxAnisotropic);
+    }
+
+    /**
+     * @param mips mip levels generated on the CPU, or null to generate them on the GPU
+     */
+    public NativeImageTexture(NativeImage image, @Nullable MipLevels mips, float sMaxAnisotropic) {
         texture = glGenTextures();
         final int width = image.getWidth();
         final int height = image.getHeight();
@@ -39,7 +50,8 @@ public final class NativeImageTexture implements FrameTexture {
 
         int internalFormat = image.format() == NativeImage.Format.RGB ? GL_RGB8 : GL_RGBA8;
         for (int level = 0; level <= maxLevel; ++level) {
-            glTexImage2D(GL_TEXTURE_2D, level, internalFormat, width >> level, height >> level,
+            glTexImage2D(GL_TEXTURE_2D, level, internalFormat,
+                    Mipmaps.levelSize(width, level), Mipmaps.levelSize(height, level),
                     0, GL_RED, GL_UNSIGNED_BYTE, (IntBuffer) null);
         }
 
@@ -59,15 +71,43 @@ public final class NativeImageTexture implements FrameTexture {
         glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 
         try (image) {
-            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, image.format().glFormat(), GL_UNSIGNED_BYTE, IMAGE_PIXELS.getLong(image));
+            final long pixels = IMAGE_PIXELS.getLong(image);
+            final long size = (long) width * height * image.format().components();
+            // prefer streaming through pixel buffers, and fallback to client memory
+            if (!PixelBufferRing.upload(width, height, image.format().glFormat(), pixels, size)) {
+                glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, image.format().glFormat(), GL_UNSIGNED_BYTE, pixels);
+            }
         } catch (Throwable t) {
             GlStateManager._deleteTexture(texture);
             texture = -1;
             throw new AssertionError("Failed to get image pointer", t);
         }
 
-        // auto generate mipmap
-        glGenerateMipmap(GL_TEXTURE_2D);
+        if (mips != null) {
+            // upload levels generated on the CPU, which is much cheaper than generating them here
+            for (int level = 1; level <= maxLevel; ++level) {
+                int w = Mipmaps.levelSize(width, level), h = Mipmaps.levelSize(height, level);
+                ByteBuffer pixels = mips.getLevel(level);
+                if (!PixelBufferRing.upload(level, 0, 0, w, h, GL_RGBA, MemoryUtil.memAddress(pixels), pixels.remaining())) {
+                    glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+                }
+            }
+        } else {
+            // auto generate mipmap
+            glGenerateMipmap(GL_TEXTURE_2D);
+        }
+        TextureMemory.allocate(textureBytes = TextureMemory.estimate(width, height, image.format().components()));
+    }
+
+    /**
+     * Gets the address of pixels in native memory.
+     */
+    static long getPointer(NativeImage image) {
+        try {
+            return IMAGE_PIXELS.getLong(image);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError("Failed to get image pointer", e);
+        }
     }
 
     @Override
@@ -80,6 +120,8 @@ public final class NativeImageTexture implements FrameTexture {
         int textureID = texture;
         if (textureID > -1) {
             GlStateManager._deleteTexture(textureID);
+            TextureMemory.free(textureBytes);
+            texture = -1;
         }
     }
 }
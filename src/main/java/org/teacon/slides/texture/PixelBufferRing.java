@@ -0,0 +1,173 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+import org.teacon.slides.SlideShow;
+
+import static org.lwjgl.opengl.GL11C.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11C.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL11C.glTexSubImage2D;
+import static org.lwjgl.opengl.GL11C.nglTexSubImage2D;
+import static org.lwjgl.opengl.GL15C.*;
+import static org.lwjgl.opengl.GL21C.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30C.GL_MAP_WRITE_BIT;
+import static org.lwjgl.opengl.GL30C.nglMapBufferRange;
+import static org.lwjgl.opengl.GL32C.*;
+import static org.lwjgl.opengl.GL44C.*;
+
+/**
+ * A ring of persistently mapped pixel unpack buffers.
+ * <p>
+ * Pixels are copied into mapped memory, and the driver pulls them asynchronously instead of stalling
+ * on client memory. Each slot is guarded by a fence, and a slot whose previous transfer is still in
+ * flight is never waited on. Slots are allocated lazily, and grown to the largest band uploaded
+ * through them, up to the max slot size. Pixels larger than that are uploaded in bands of rows, one
+ * slot for each band, and the rows left when slots run out are uploaded from client memory. When no
+ * slot is available, or the buffer storage is not supported, callers should fall back to uploading
+ * from client memory.
+ */
+final class PixelBufferRing {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("slideshow.upload.pbo", "true"));
+    private static final int SLOT_COUNT = 3;
+    private static final long MIN_SLOT_SIZE = 1L << 20; // 1 MiB
+    private static final long MAX_SLOT_SIZE =
+            Math.max(MIN_SLOT_SIZE, Long.getLong("slideshow.upload.pboSize", 1L << 24)); // 16 MiB
+
+    private static boolean sSupported;
+
+    private static final int[] sBuffers = new int[SLOT_COUNT];
+    private static final long[] sAddresses = new long[SLOT_COUNT];
+    private static final long[] sFences = new long[SLOT_COUNT];
+    private static final long[] sSizes = new long[SLOT_COUNT];
+
+    private static int sNextSlot;
+
+    static {
+        GLCapabilities caps = GL.getCapabilities();
+        sSupported = ENABLED && (caps.OpenGL44 || caps.GL_ARB_buffer_storage);
+    }
+
+    private PixelBufferRing() {
+    }
+
+    /**
+     * Uploads pixels to the level 0 of the currently bound 2D texture, whose storage is already allocated.
+     *
+     * @param address the address of pixels in native memory
+     * @param size    the size of pixels in bytes
+     * @return false if the caller should upload from client memory instead
+     */
+    static boolean upload(int width, int height, int format, long address, long size) {
+        return upload(0, 0, 0, width, height, format, address, size);
+    }
+
+    /**
+     * Uploads pixels to a region of the currently bound 2D texture, whose storage is already allocated.
+     *
+     * @param address the address of pixels in native memory
+     * @param size    the size of pixels in bytes
+     * @return false if the caller should upload from client memory instead
+     */
+    static boolean upload(int level, int x, int y, int width, int height, int format, long address, long size) {
+        RenderSystem.assertOnRenderThread();
+        if (!sSupported || height <= 0) {
+            return false;
+        }
+        // rows are tightly packed, so a band of rows is a contiguous range
+        long rowSize = size / height;
+        int bandRows = (int) Math.min(height, MAX_SLOT_SIZE / rowSize);
+        if (bandRows == 0) {
+            return false;
+        }
+        int row = 0;
+        while (row < height) {
+            int slot = nextAvailableSlot();
+            if (slot < 0) {
+                break;
+            }
+            int rows = Math.min(bandRows, height - row);
+            if (!reserve(slot, rows * rowSize)) {
+                break;
+            }
+            MemoryUtil.memCopy(address + row * rowSize, sAddresses[slot], rows * rowSize);
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, sBuffers[slot]);
+            glTexSubImage2D(GL_TEXTURE_2D, level, x, y + row, width, rows, format, GL_UNSIGNED_BYTE, 0L);
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+            sFences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            sNextSlot = (slot + 1) % SLOT_COUNT;
+            row += rows;
+        }
+        if (row == 0) {
+            return false;
+        }
+        if (row < height) {
+            nglTexSubImage2D(GL_TEXTURE_2D, level, x, y + row, width, height - row,
+                    format, GL_UNSIGNED_BYTE, address + row * rowSize);
+        }
+        return true;
+    }
+
+    private static int nextAvailableSlot() {
+        for (int i = 0; i < SLOT_COUNT; ++i) {
+            int slot = (sNextSlot + i) % SLOT_COUNT;
+            if (isAvailable(slot)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAvailable(int slot) {
+        long fence = sFences[slot];
+        if (fence == 0) {
+            return true;
+        }
+        int status = glClientWaitSync(fence, 0, 0);
+        if (status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED) {
+            glDeleteSync(fence);
+            sFences[slot] = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Grows the slot to hold the given bytes, which is reallocated since buffer storage is immutable.
+     * The slot must be available, and its size is rounded up to a power of two.
+     *
+     * @return false if the buffer could not be mapped, after which pixel buffers are no longer used
+     */
+    private static boolean reserve(int slot, long bytes) {
+        if (sSizes[slot] >= bytes) {
+            return true;
+        }
+        long size = Math.min(MAX_SLOT_SIZE, Math.max(MIN_SLOT_SIZE, Long.highestOneBit(bytes - 1) << 1));
+        int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+        if (sBuffers[slot] != 0) {
+            glDeleteBuffers(sBuffers[slot]);
+        }
+        sBuffers[slot] = glGenBuffers();
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, sBuffers[slot]);
+        glBufferStorage(GL_PIXEL_UNPACK_BUFFER, size, flags);
+        sAddresses[slot] = nglMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, size, flags);
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        if (sAddresses[slot] == 0) {
+            SlideShow.LOGGER.warn("Failed to map pixel buffers, fallback to client memory uploads");
+            for (int i = 0; i < SLOT_COUNT; ++i) {
+                if (sBuffers[i] != 0) {
+                    glDeleteBuffers(sBuffers[i]);
+                }
+                sBuffers[i] = 0;
+                sAddresses[i] = 0;
+                sSizes[i] = 0;
+            }
+            sSupported = false;
+            return false;
+        }
+        sSizes[slot] = size;
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package org.teacon.slides.texture;
+
+/**
+ * A reference to a texture shared by slides of the same content.
+ *
+ * @see TextureRegistry
+ */
+public final class SharedTexture implements FrameTexture {
+    private final TextureRegistry.Entry entry;
+    private final FrameTexture texture;
+    private boolean released;
+
+    SharedTexture(TextureRegistry.Entry entry, FrameTexture texture) {
+        this.entry = entry;
+        this.texture = texture;
+    }
+
+    @Override
+    public int currentTextureID(long tick, float partialTick) {
+        return released ? -1 : texture.currentTextureID(tick, partialTick);
+    }
+
+    @Override
+    public FrameRegion currentRegion() {
+        return texture.currentRegion();
+    }
+
+    @Override
+    public void trim() {
+        if (!released) {
+            texture.trim();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!released) {
+            released = true;
+            TextureRegistry.release(entry);
+        }
+    }
+}
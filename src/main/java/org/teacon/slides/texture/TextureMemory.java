@@ -0,0 +1,45 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+
+/**
+ * Accounts the estimated video memory used by slide textures, on the render thread.
+ */
+public final class TextureMemory {
+
+    private static final long BUDGET_BYTES = Long.getLong("slideshow.texture.budgetMiB", 512) << 20; // 512 MiB
+
+    private static long sUsedBytes;
+
+    private TextureMemory() {
+    }
+
+    /**
+     * Estimates the size of a texture with a full mip chain, which is about 4/3 of the base level.
+     */
+    static long estimate(int width, int height, int bytesPerPixel) {
+        return (long) width * height * bytesPerPixel * 4 / 3;
+    }
+
+    static void allocate(long bytes) {
+        RenderSystem.assertOnRenderThread();
+        sUsedBytes += bytes;
+    }
+
+    static void free(long bytes) {
+        RenderSystem.assertOnRenderThread();
+        sUsedBytes -= bytes;
+    }
+
+    public static long getUsedBytes() {
+        return sUsedBytes;
+    }
+
+    public static long getBudgetBytes() {
+        return BUDGET_BYTES;
+    }
+
+    public static boolean isOverBudget() {
+        return sUsedBytes > BUDGET_BYTES;
+    }
+}
@@ -0,0 +1,129 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Shares textures of the same content between slides, keyed by the SHA-1 of image data.
+ * <p>
+ * Each texture returned by {@link #acquire} holds a reference, which is dropped by its {@link FrameTexture#release()}
+ * on the render thread. The underlying texture is created once, and released with the last reference.
+ */
+public final class TextureRegistry {
+
+    // guarded by itself, as well as the counters
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+
+    private static int sReferences;
+    private static long sAcquires;
+    private static long sHits;
+
+    private TextureRegistry() {
+    }
+
+    /**
+     * Acquires a reference to the texture of the content, on any thread.
+     *
+     * @param hash    the SHA-1 of image data, in lowercase hex
+     * @param factory creates the texture if there is no texture of the content yet
+     * @return the texture completed on the render thread, which should be released exactly once
+     */
+    @Nonnull
+    public static CompletableFuture<FrameTexture> acquire(@Nonnull String hash,
+                                                          @Nonnull Supplier<CompletableFuture<FrameTexture>> factory) {
+        Entry entry;
+        boolean created = false;
+        synchronized (sEntries) {
+            entry = sEntries.get(hash);
+            if (entry == null) {
+                sEntries.put(hash, entry = new Entry(hash));
+                created = true;
+            } else {
+                ++sHits;
+            }
+            ++entry.mReferences;
+            ++sReferences;
+            ++sAcquires;
+        }
+        if (created) {
+            Entry newEntry = entry;
+            factory.get().whenComplete((texture, e) -> {
+                if (e != null) {
+                    // failed entries are never released, so that the content could be loaded again
+                    synchronized (sEntries) {
+                        sEntries.remove(hash, newEntry);
+                        sReferences -= newEntry.mReferences;
+                    }
+                    newEntry.mTexture.completeExceptionally(e);
+                } else {
+                    newEntry.mTexture.complete(texture);
+                }
+            });
+        }
+        Entry acquired = entry;
+        // completed on the render thread even if the texture exists, as slides are only touched there
+        return entry.mTexture.thenApplyAsync(texture -> new SharedTexture(acquired, texture),
+                r -> RenderSystem.recordRenderCall(r::run));
+    }
+
+    static void release(@Nonnull Entry entry) {
+        RenderSystem.assertOnRenderThread();
+        synchronized (sEntries) {
+            --sReferences;
+            if (--entry.mReferences > 0) {
+                return;
+            }
+            sEntries.remove(entry.mHash, entry);
+        }
+        entry.mTexture.join().release();
+    }
+
+    /**
+     * @return the count of textures, including the ones being loaded
+     */
+    public static int getTextureCount() {
+        synchronized (sEntries) {
+            return sEntries.size();
+        }
+    }
+
+    /**
+     * @return the count of slides referencing textures, including the ones being loaded
+     */
+    public static int getReferenceCount() {
+        synchronized (sEntries) {
+            return sReferences;
+        }
+    }
+
+    public static long getAcquireCount() {
+        synchronized (sEntries) {
+            return sAcquires;
+        }
+    }
+
+    /**
+     * @return the count of acquires which share an existing texture instead of creating one
+     */
+    public static long getHitCount() {
+        synchronized (sEntries) {
+            return sHits;
+        }
+    }
+
+    static final class Entry {
+
+        private final String mHash;
+        private final CompletableFuture<FrameTexture> mTexture = new CompletableFuture<>();
+        private int mReferences;
+
+        private Entry(String hash) {
+            mHash = hash;
+        }
+    }
+}
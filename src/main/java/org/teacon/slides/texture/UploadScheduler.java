@@ -0,0 +1,125 @@
+package org.teacon.slides.texture;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import org.teacon.slides.SlideShow;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Schedules texture uploads on the render thread, with a time budget per frame.
+ * <p>
+ * Pending uploads are drained at the start of each frame, the one with the lowest priority value
+ * (usually the squared distance to the camera) goes first. At least one upload is done per frame
+ * so that nothing starves.
+ */
+@OnlyIn(Dist.CLIENT)
+@Mod.EventBusSubscriber(value = Dist.CLIENT, modid = SlideShow.ID)
+public final class UploadScheduler {
+
+    private static final long BUDGET_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(Long.getLong("slideshow.upload.budgetMicros", 2000)); // 2ms
+
+    private static final List<Task> sPending = new ArrayList<>();
+
+    private static int sLastFrameUploads;
+    private static long sLastFrameNanos;
+    private static int sLastFramePending;
+
+    private UploadScheduler() {
+    }
+
+    /**
+     * Creates an executor which runs tasks on the render thread within the upload budget.
+     *
+     * @param priority lower values are uploaded first
+     * @return the executor
+     */
+    @Nonnull
+    public static Executor executor(@Nonnull DoubleSupplier priority) {
+        return r -> RenderSystem.recordRenderCall(() -> sPending.add(new Task(r, priority)));
+    }
+
+    /**
+     * Asserts that the calling thread is not the render thread, so that decoding never stalls frames,
+     * and only uploads within the budget are left to the render thread.
+     *
+     * @throws IllegalStateException if called on the render thread
+     */
+    public static void assertOffRenderThread() {
+        if (RenderSystem.isOnRenderThread()) {
+            throw new IllegalStateException("Slide images must not be decoded on the render thread");
+        }
+    }
+
+    @SubscribeEvent
+    static void renderTick(@Nonnull TickEvent.RenderTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            drain();
+        }
+    }
+
+    private static void drain() {
+        RenderSystem.assertOnRenderThread();
+        int uploads = 0;
+        long startTime = System.nanoTime(), elapsed = 0;
+        if (!sPending.isEmpty()) {
+            for (Task task : sPending) {
+                task.mPriority = task.mPrioritySupplier.getAsDouble();
+            }
+            sPending.sort(Comparator.comparingDouble(task -> task.mPriority));
+            int i = 0;
+            while (i < sPending.size() && (i == 0 || elapsed < BUDGET_NANOS)) {
+                try {
+                    sPending.get(i++).mRunnable.run();
+                } catch (Throwable t) {
+                    SlideShow.LOGGER.error("Failed to upload texture", t);
+                }
+                elapsed = System.nanoTime() - startTime;
+            }
+            sPending.subList(0, i).clear();
+            uploads = i;
+        }
+        sLastFrameUploads = uploads;
+        sLastFrameNanos = elapsed;
+        sLastFramePending = sPending.size();
+        if (uploads > 0) {
+            SlideShow.LOGGER.debug("Uploaded {} texture(s) in {} us, {} pending",
+                    uploads, TimeUnit.NANOSECONDS.toMicros(elapsed), sPending.size());
+        }
+    }
+
+    public static int getLastFrameUploads() {
+        return sLastFrameUploads;
+    }
+
+    public static long getLastFrameNanos() {
+        return sLastFrameNanos;
+    }
+
+    public static int getLastFramePending() {
+        return sLastFramePending;
+    }
+
+    private static final class Task {
+
+        private final Runnable mRunnable;
+        private final DoubleSupplier mPrioritySupplier;
+        private double mPriority;
+
+        private Task(Runnable runnable, DoubleSupplier prioritySupplier) {
+            mRunnable = runnable;
+            mPrioritySupplier = prioritySupplier;
+        }
+    }
+}
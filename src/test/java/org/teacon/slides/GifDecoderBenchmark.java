@@ -0,0 +1,97 @@
+package org.teacon.slides;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures the throughput of decoding all frames in order, by {@link StreamingGifDecoder} and by
+ * the original {@link GifDecoder}, which is what the playback of an animated slide does.
+ * <p>
+ * Excluded from the test task, run it with {@code gradlew benchmark}.
+ */
+@Tag("benchmark")
+class GifDecoderBenchmark {
+
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MEASURE_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private static byte[] sSmall, sLarge, sInterlaced;
+
+    @BeforeAll
+    static void generate() throws IOException {
+        sSmall = GifGenerator.generate(1L, 40, 60, 0);
+        sLarge = GifGenerator.generate(2L, 40, 480, 0);
+        sInterlaced = GifGenerator.generate(3L, 40, 480, 1);
+    }
+
+    @Test
+    void small() {
+        this.compare("small", sSmall);
+    }
+
+    @Test
+    void large() {
+        this.compare("large", sLarge);
+    }
+
+    @Test
+    void interlaced() {
+        this.compare("interlaced", sInterlaced);
+    }
+
+    private void compare(String name, byte[] data) {
+        var probe = new GifDecoder();
+        assertEquals(GifDecoder.STATUS_OK, probe.read(new ByteArrayInputStream(data)));
+        var frames = probe.getFrameCount();
+        var streaming = measure(() -> {
+            var decoder = new StreamingGifDecoder();
+            assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+            for (var n = 0; n < frames; ++n) {
+                assertNotNull(decoder.decodeFrame(n));
+            }
+        });
+        var original = measure(() -> {
+            var decoder = new GifDecoder();
+            assertEquals(GifDecoder.STATUS_OK, decoder.read(new ByteArrayInputStream(data)));
+            for (var n = 0; n < frames; ++n) {
+                assertNotNull(decoder.getFrame(n));
+            }
+        });
+        report(name + " streaming", data.length, frames, streaming);
+        report(name + " original", data.length, frames, original);
+    }
+
+    /**
+     * Runs the decoding repeatedly after a warmup.
+     *
+     * @return nanoseconds of each run on average
+     */
+    private static double measure(Runnable decode) {
+        var warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            decode.run();
+        }
+        var runs = 0;
+        var start = System.nanoTime();
+        var elapsed = 0L;
+        while (elapsed < MEASURE_NANOS) {
+            decode.run();
+            ++runs;
+            elapsed = System.nanoTime() - start;
+        }
+        return (double) elapsed / runs;
+    }
+
+    private static void report(String name, int bytes, int frames, double nanos) {
+        var seconds = nanos / TimeUnit.SECONDS.toNanos(1);
+        System.out.printf("%-20s %10.2f MB/s %12.1f frames/s%n", name, bytes / 1e6 / seconds, frames / seconds);
+    }
+}
@@ -0,0 +1,66 @@
+package org.teacon.slides;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+final class GifGenerator {
+
+    private static final String[] DISPOSAL_METHODS = {
+            "none", "doNotDispose", "restoreToBackgroundColor", "restoreToPrevious"};
+
+    private GifGenerator() {
+    }
+
+    /**
+     * Generates an animated GIF, whose frames cycle through all the disposal methods, and about a quarter
+     * of pixels are transparent. Frames are placed at random offsets, so that they cover different parts
+     * of the canvas.
+     *
+     * @param maxSize        frames are between a sixth of and the max size, and placed within half of it
+     * @param interlaceEvery every nth frame is interlaced, or none if zero
+     */
+    static byte[] generate(long seed, int frameCount, int maxSize, int interlaceEvery) throws IOException {
+        var random = new Random(seed);
+        var writer = ImageIO.getImageWritersByFormatName("gif").next();
+        var output = new ByteArrayOutputStream();
+        try (var stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+            for (var n = 0; n < frameCount; ++n) {
+                var width = maxSize / 6 + random.nextInt(maxSize * 5 / 6);
+                var height = maxSize / 6 + random.nextInt(maxSize * 5 / 6);
+                var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                for (var y = 0; y < height; ++y) {
+                    for (var x = 0; x < width; ++x) {
+                        var transparent = random.nextInt(4) == 0;
+                        image.setRGB(x, y, transparent ? 0 : 0xFF000000 | random.nextInt(8) * 0x202020);
+                    }
+                }
+                var param = writer.getDefaultWriteParam();
+                var metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+                var format = metadata.getNativeMetadataFormatName();
+                var root = (IIOMetadataNode) metadata.getAsTree(format);
+                var control = (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension").item(0);
+                control.setAttribute("disposalMethod", DISPOSAL_METHODS[n % DISPOSAL_METHODS.length]);
+                control.setAttribute("delayTime", Integer.toString(5 + n));
+                var descriptor = (IIOMetadataNode) root.getElementsByTagName("ImageDescriptor").item(0);
+                descriptor.setAttribute("imageLeftPosition", Integer.toString(random.nextInt(maxSize / 2)));
+                descriptor.setAttribute("imageTopPosition", Integer.toString(random.nextInt(maxSize / 2)));
+                var interlaced = interlaceEvery > 0 && n % interlaceEvery == 0;
+                descriptor.setAttribute("interlaceFlag", interlaced ? "TRUE" : "FALSE");
+                metadata.setFromTree(format, root);
+                writer.writeToSequence(new IIOImage(image, null, metadata), param);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
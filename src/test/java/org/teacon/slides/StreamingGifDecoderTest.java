@@ -0,0 +1,111 @@
+package org.teacon.slides;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingGifDecoderTest {
+
+    private static final int FRAME_COUNT = 12;
+    private static final int MAX_SIZE = 60;
+
+    // in order, then backwards and out of order, which rewinds the decoder
+    private static final int[] DECODE_ORDER = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 3, 7, 11, 0, 5, 10, 2};
+
+    @Test
+    void framesMatchGifDecoder() throws IOException {
+        var data = generate(1L);
+        var decoder = new StreamingGifDecoder();
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+        assertFramesMatch(data, decoder);
+        assertEquals(0L, decoder.getRetainedBytes());
+    }
+
+    @Test
+    void retainedFramesMatchGifDecoder() throws IOException {
+        var data = generate(2L);
+        var decoder = new StreamingGifDecoder();
+        decoder.setRetainLimit(1L << 20);
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+        assertFramesMatch(data, decoder);
+        assertTrue(decoder.getRetainedBytes() > 0L);
+    }
+
+    @Test
+    void concurrentlyDecodedFramesMatchGifDecoder() throws IOException {
+        var data = generate(3L);
+        var decoder = new StreamingGifDecoder();
+        decoder.setRetainLimit(1L << 20);
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+        decoder.decodeAll(ForkJoinPool.commonPool());
+        assertTrue(decoder.getRetainedBytes() > 0L);
+        assertFramesMatch(data, decoder);
+    }
+
+    @Test
+    void partiallyRetainedFramesMatchGifDecoder() throws IOException {
+        var data = generate(4L);
+        var decoder = new StreamingGifDecoder();
+        decoder.setRetainLimit(4000L);
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+        decoder.decodeAll(ForkJoinPool.commonPool());
+        assertTrue(decoder.getRetainedBytes() <= 4000L);
+        assertFramesMatch(data, decoder);
+    }
+
+    @Test
+    void snapshottedFramesMatchGifDecoder() throws IOException {
+        var data = generate(6L);
+        var decoder = new StreamingGifDecoder();
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+        // four keyframes, so every third frame is snapshotted
+        decoder.setSnapshotLimit(4L * 8 * decoder.getWidth() * decoder.getHeight());
+        assertFramesMatch(data, decoder);
+        assertEquals(3L * 8 * decoder.getWidth() * decoder.getHeight(), decoder.getSnapshotBytes());
+    }
+
+    @Test
+    void interlacedFramesMatchGifDecoder() throws IOException {
+        var data = GifGenerator.generate(7L, FRAME_COUNT, MAX_SIZE, 1);
+        var decoder = new StreamingGifDecoder();
+        decoder.setRetainLimit(1L << 20);
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(ByteBuffer.wrap(data)));
+        decoder.decodeAll(ForkJoinPool.commonPool());
+        assertFramesMatch(data, decoder);
+    }
+
+    @Test
+    void streamReadMatchesBufferRead() throws IOException {
+        var data = generate(5L);
+        var decoder = new StreamingGifDecoder();
+        assertEquals(GifDecoder.STATUS_OK, decoder.read(new ByteArrayInputStream(data)));
+        assertFramesMatch(data, decoder);
+    }
+
+    private static void assertFramesMatch(byte[] data, StreamingGifDecoder decoder) {
+        var expected = new GifDecoder();
+        assertEquals(GifDecoder.STATUS_OK, expected.read(new ByteArrayInputStream(data)));
+        assertEquals(FRAME_COUNT, expected.getFrameCount());
+        assertEquals(expected.getFrameCount(), decoder.getFrameCount());
+        assertEquals(expected.getFrameSize().width, decoder.getWidth());
+        assertEquals(expected.getFrameSize().height, decoder.getHeight());
+        for (var n : DECODE_ORDER) {
+            var image = expected.getFrame(n);
+            var expectedPixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+            assertArrayEquals(expectedPixels, decoder.decodeFrame(n), "frame " + n);
+            assertEquals(expected.getDelay(n), decoder.getDelay(n), "delay of frame " + n);
+        }
+    }
+
+    /**
+     * Generates an animated GIF of small frames, every third of which is interlaced.
+     */
+    private static byte[] generate(long seed) throws IOException {
+        return GifGenerator.generate(seed, FRAME_COUNT, MAX_SIZE, 3);
+    }
+}
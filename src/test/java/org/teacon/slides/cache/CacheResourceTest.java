@@ -0,0 +1,49 @@
+package org.teacon.slides.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheResourceTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void serializedResourcePointsAtTheSameFile() throws Exception {
+        var content = "slide".getBytes(StandardCharsets.UTF_8);
+        var resource = CacheResource.write(this.dir, new ByteArrayInputStream(content), null);
+
+        // a temporary resource keeps its hash, so that it could still be stored after deserialization
+        var copy = roundTrip(resource);
+        var storedPath = copy.store(this.dir);
+        assertTrue(storedPath.getFileName().toString().matches("[0-9a-f]{40}"));
+        try (var input = copy.getInputStream()) {
+            assertArrayEquals(content, input.readAllBytes());
+        }
+
+        var stored = roundTrip(new CacheResource(storedPath));
+        assertEquals(content.length, stored.length());
+        try (var input = stored.getInputStream()) {
+            assertEquals(storedPath, ((CacheResource.Stream) input).getPath());
+        }
+    }
+
+    private static CacheResource roundTrip(CacheResource resource) throws Exception {
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new ObjectOutputStream(bytes)) {
+            output.writeObject(resource);
+        }
+        try (var input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (CacheResource) input.readObject();
+        }
+    }
+}
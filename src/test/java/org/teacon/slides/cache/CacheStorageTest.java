@@ -0,0 +1,295 @@
+package org.teacon.slides.cache;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheStorageTest {
+
+    private static final String COUNT_HEADER = "X-Count";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void parallelPutsOfDifferentUrlsDoNotBlock() throws Exception {
+        var storage = new CacheStorage(this.dir);
+        var blockedUrl = "https://example.com:443/blocked.png";
+        var blockedLock = storage.getEntryLock(blockedUrl);
+        var urls = new ArrayList<String>();
+        for (var i = 0; urls.size() < 16; ++i) {
+            var url = "https://example.com:443/" + i + ".png";
+            if (storage.getEntryLock(url) != blockedLock) {
+                urls.add(url);
+            }
+        }
+        var executor = Executors.newCachedThreadPool();
+        try {
+            var entered = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            // holds the lock of the blocked url until all the other puts are done
+            var blocked = executor.submit(() -> {
+                storage.updateEntry(blockedUrl, existing -> {
+                    entered.countDown();
+                    assertTrue(Uninterruptibles.awaitUninterruptibly(release, 30, TimeUnit.SECONDS));
+                    return entry(resource(blockedUrl), 1);
+                });
+                return null;
+            });
+            assertTrue(entered.await(30, TimeUnit.SECONDS));
+
+            var start = new CountDownLatch(1);
+            var puts = new ArrayList<Future<?>>();
+            for (var url : urls) {
+                puts.add(executor.submit(() -> {
+                    start.await();
+                    storage.putEntry(url, entry(resource(url), 1));
+                    storage.updateEntry(url, existing -> entry(existing.getResource(), count(existing) + 1));
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (var put : puts) {
+                put.get(30, TimeUnit.SECONDS);
+            }
+            assertFalse(blocked.isDone());
+
+            release.countDown();
+            blocked.get(30, TimeUnit.SECONDS);
+            for (var url : urls) {
+                var entry = storage.getEntry(url);
+                assertNotNull(entry);
+                assertEquals(2, count(entry));
+            }
+            assertEquals(1, count(storage.getEntry(blockedUrl)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void parallelUpdatesOfSameUrlAreAtomic() throws Exception {
+        var storage = new CacheStorage(this.dir);
+        var url = "https://example.com:443/shared.png";
+        var resource = resource(url);
+        var threads = 8;
+        var updatesPerThread = 50;
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            var start = new CountDownLatch(1);
+            var updates = new ArrayList<Future<?>>();
+            for (var i = 0; i < threads; ++i) {
+                updates.add(executor.submit(() -> {
+                    start.await();
+                    for (var j = 0; j < updatesPerThread; ++j) {
+                        storage.updateEntry(url, existing -> existing == null
+                                ? entry(resource, 1) : entry(existing.getResource(), count(existing) + 1));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (var update : updates) {
+                update.get(60, TimeUnit.SECONDS);
+            }
+            assertEquals(threads * updatesPerThread, count(storage.getEntry(url)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void storedFilesRequireRevalidationForNoCacheDirectives() throws Exception {
+        var storage = new CacheStorage(this.dir);
+        var fresh = stored(storage, "fresh", new BasicHeader(HttpHeaders.CACHE_CONTROL, "max-age=3600"));
+        assertTrue(fresh.fresh());
+        assertFalse(fresh.revalidationRequired());
+        var stale = stored(storage, "stale", new BasicHeader(HttpHeaders.CACHE_CONTROL, "max-age=0"));
+        assertFalse(stale.fresh());
+        assertFalse(stale.revalidationRequired());
+        var noCache = stored(storage, "no-cache", new BasicHeader(HttpHeaders.CACHE_CONTROL, "no-cache"));
+        assertFalse(noCache.fresh());
+        assertTrue(noCache.revalidationRequired());
+        var mustRevalidate = stored(storage, "must-revalidate",
+                new BasicHeader(HttpHeaders.CACHE_CONTROL, "max-age=0, must-revalidate"));
+        assertFalse(mustRevalidate.fresh());
+        assertTrue(mustRevalidate.revalidationRequired());
+        var pragma = stored(storage, "pragma", new BasicHeader(HttpHeaders.PRAGMA, "no-cache"));
+        assertTrue(pragma.revalidationRequired());
+    }
+
+    @Test
+    void storedFilesFollowFreshnessLifetime() throws Exception {
+        var storage = new CacheStorage(this.dir);
+        assertTrue(stored(storage, "expires", new BasicHeader(HttpHeaders.EXPIRES, hoursFromNow(1))).fresh());
+        assertFalse(stored(storage, "expired", new BasicHeader(HttpHeaders.EXPIRES, hoursFromNow(-1))).fresh());
+        // max-age takes precedence over expires
+        assertFalse(stored(storage, "max-age", new BasicHeader(HttpHeaders.EXPIRES, hoursFromNow(1)),
+                new BasicHeader(HttpHeaders.CACHE_CONTROL, "max-age=0")).fresh());
+        // a tenth of the time since the last modification, which is capped to a day
+        assertTrue(stored(storage, "heuristic",
+                new BasicHeader(HttpHeaders.LAST_MODIFIED, hoursFromNow(-240))).fresh());
+        assertFalse(stored(storage, "heuristic-stale",
+                new BasicHeader(HttpHeaders.LAST_MODIFIED, hoursFromNow(0))).fresh());
+        assertFalse(stored(storage, "no-validator").fresh());
+    }
+
+    @Test
+    void trimEvictsLeastRecentlyAccessedEntriesOverByteBudget() throws Exception {
+        var storage = new CacheStorage(this.dir, 350L, Integer.MAX_VALUE);
+        var paths = this.putAll(storage, "a", "b", "c", "d", "e");
+        // accessing the first entry makes it the most recently accessed one
+        Thread.sleep(5L);
+        assertNotNull(storage.getEntry(url("a")));
+
+        storage.trimStorage();
+        assertSurvivors(storage, Set.of("a", "d", "e"), "a", "b", "c", "d", "e");
+        // files of evicted entries are younger than the grace period, which may still be published
+        for (var name : List.of("a", "b", "c", "d", "e")) {
+            assertTrue(Files.exists(paths.get(name)), name);
+        }
+
+        for (var name : List.of("b", "c")) {
+            Files.setLastModifiedTime(paths.get(name), hoursAgo(2));
+        }
+        assertEquals(2, storage.trimStorage());
+        assertFalse(Files.exists(paths.get("b")));
+        assertFalse(Files.exists(paths.get("c")));
+        assertTrue(Files.exists(paths.get("a")));
+    }
+
+    @Test
+    void trimEvictsLeastRecentlyAccessedEntriesOverEntryBudget() throws Exception {
+        var storage = new CacheStorage(this.dir, Long.MAX_VALUE, 2);
+        this.putAll(storage, "a", "b", "c", "d");
+        Thread.sleep(5L);
+        assertNotNull(storage.getEntry(url("b")));
+
+        storage.trimStorage();
+        assertSurvivors(storage, Set.of("b", "d"), "a", "b", "c", "d");
+    }
+
+    @Test
+    void trimEvictsDerivedFilesBeforeEntries() throws Exception {
+        var storage = new CacheStorage(this.dir, 250L, Integer.MAX_VALUE);
+        var paths = this.putAll(storage, "a", "b");
+        var hash = paths.get("a").getFileName().toString().substring(0, 40);
+        var derived = storage.getDerivedPath(hash, "mip");
+        Files.createDirectories(derived.getParent());
+        Files.write(derived, new byte[100]);
+
+        assertEquals(1, storage.trimStorage());
+        assertFalse(Files.exists(derived));
+        assertSurvivors(storage, Set.of("a", "b"), "a", "b");
+    }
+
+    @Test
+    void trimDeletesOrphanFilesOlderThanGracePeriod() throws Exception {
+        var storage = new CacheStorage(this.dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        var paths = this.putAll(storage, "a");
+        // referenced files survive however old they are
+        Files.setLastModifiedTime(paths.get("a"), hoursAgo(2));
+        var youngOrphan = Files.write(this.dir.resolve("0".repeat(40) + ".png"), new byte[100]);
+        var oldOrphan = Files.write(this.dir.resolve("1".repeat(40) + ".png"), new byte[100]);
+        Files.setLastModifiedTime(oldOrphan, hoursAgo(2));
+        var oldTemporary = Files.write(this.dir.resolve("slideshow-42.tmp"), new byte[100]);
+        Files.setLastModifiedTime(oldTemporary, hoursAgo(2));
+        var unrelated = Files.write(this.dir.resolve("notes.txt"), new byte[100]);
+        Files.setLastModifiedTime(unrelated, hoursAgo(2));
+
+        assertEquals(2, storage.trimStorage());
+        assertTrue(Files.exists(paths.get("a")));
+        assertTrue(Files.exists(youngOrphan));
+        assertFalse(Files.exists(oldOrphan));
+        assertFalse(Files.exists(oldTemporary));
+        assertTrue(Files.exists(unrelated));
+        assertNotNull(storage.getEntry(url("a")));
+    }
+
+    private Map<String, Path> putAll(CacheStorage storage, String... names) throws Exception {
+        var paths = new HashMap<String, Path>();
+        for (var name : names) {
+            // access times are in milliseconds, so that entries are put in a distinct order
+            Thread.sleep(5L);
+            var content = name.repeat(100).getBytes(StandardCharsets.UTF_8);
+            storage.putEntry(url(name), entry(new HeapResource(content), 1));
+            paths.put(name, storage.getStoredFile(url(name)).path());
+        }
+        return paths;
+    }
+
+    private static void assertSurvivors(CacheStorage storage, Set<String> expected, String... names) {
+        for (var name : names) {
+            assertEquals(expected.contains(name), storage.getEntry(url(name)) != null, name);
+        }
+    }
+
+    private static String url(String name) {
+        return "https://example.com:443/" + name + ".png";
+    }
+
+    private static String hoursFromNow(int hours) {
+        return DateUtils.formatDate(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(hours)));
+    }
+
+    private static FileTime hoursAgo(int hours) {
+        return FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hours));
+    }
+
+    private static CacheStorage.StoredFile stored(CacheStorage storage, String name, Header... extraHeaders)
+            throws Exception {
+        var url = "https://example.com:443/" + name + ".png";
+        var now = new Date();
+        var statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        var headers = new ArrayList<Header>();
+        headers.add(new BasicHeader(HttpHeaders.DATE, DateUtils.formatDate(now)));
+        headers.addAll(List.of(extraHeaders));
+        var entry = new HttpCacheEntry(now, now, statusLine, headers.toArray(Header[]::new), resource(url));
+        storage.putEntry(url, entry);
+        var storedFile = storage.getStoredFile(url);
+        assertNotNull(storedFile);
+        return storedFile;
+    }
+
+    private static Resource resource(String content) {
+        return new HeapResource(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpCacheEntry entry(Resource resource, int count) {
+        var now = new Date();
+        var statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        var headers = new Header[]{new BasicHeader(COUNT_HEADER, Integer.toString(count))};
+        return new HttpCacheEntry(now, now, statusLine, headers, resource);
+    }
+
+    private static int count(HttpCacheEntry entry) {
+        return Integer.parseInt(entry.getFirstHeader(COUNT_HEADER).getValue());
+    }
+}
@@ -0,0 +1,116 @@
+package org.teacon.slides.cache;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class DownloadSchedulerTest {
+
+    private static final int FETCH_COUNT = 5000;
+    private static final int PLATFORM_CONCURRENCY = 64;
+    private static final int VIRTUAL_CONCURRENCY = 1024;
+    private static final int SERVER_THREADS = 512;
+    private static final long RESPONSE_DELAY_MILLIS = 50;
+
+    @TempDir
+    Path dir;
+
+    private final AtomicInteger serverInFlight = new AtomicInteger();
+    private final AtomicInteger serverPeak = new AtomicInteger();
+    // failures on server and download threads, which are asserted on the test thread
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private DownloadEngine engine;
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        this.engine = DownloadEngine.create(true);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), FETCH_COUNT);
+        this.server.createContext("/", exchange -> {
+            var inFlight = this.serverInFlight.incrementAndGet();
+            this.serverPeak.accumulateAndGet(inFlight, Math::max);
+            try {
+                // a slow server, which is where blocked downloads pile up
+                Thread.sleep(RESPONSE_DELAY_MILLIS);
+                var body = exchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                // the server keeps at most 200 idle connections, and closes the others while the client
+                // could still reuse them, so connections are not kept alive
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (Throwable t) {
+                this.failure.compareAndSet(null, t);
+            } finally {
+                this.serverInFlight.decrementAndGet();
+                exchange.close();
+            }
+        });
+        // the server has its own threads, so that it never competes with the downloads it serves
+        this.serverExecutor = Executors.newFixedThreadPool(SERVER_THREADS);
+        this.server.setExecutor(this.serverExecutor);
+        this.server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        this.server.stop(0);
+        this.serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void concurrentFetchesCompleteWithinLimits() throws Exception {
+        // thousands of downloads are in flight on virtual threads, and far fewer on platform threads
+        var maxConcurrency = this.engine.virtual() ? VIRTUAL_CONCURRENCY : PLATFORM_CONCURRENCY;
+        var cache = new ImageCache(this.dir, this.engine, maxConcurrency, maxConcurrency);
+        var host = "http://127.0.0.1:" + this.server.getAddress().getPort();
+
+        var succeeded = new AtomicInteger();
+        var fetches = new ArrayList<CompletableFuture<?>>(FETCH_COUNT);
+        for (var i = 0; i < FETCH_COUNT; ++i) {
+            var path = "/" + i + ".png";
+            fetches.add(cache.getResource(URI.create(host + path), true, () -> 0.0).whenComplete((data, e) -> {
+                if (e != null) {
+                    this.failure.compareAndSet(null, e);
+                } else if (path.equals(StandardCharsets.UTF_8.decode(data.data()).toString())) {
+                    succeeded.incrementAndGet();
+                } else {
+                    this.failure.compareAndSet(null, new AssertionError("Unexpected content of " + path));
+                }
+            }));
+        }
+
+        // failures are reported by the fetches themselves, so completion is waited for regardless
+        CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(e -> null).get(120, TimeUnit.SECONDS);
+        assertNull(this.failure.get(), () -> "Downloads should not fail: " + this.failure.get());
+        assertEquals(FETCH_COUNT, succeeded.get());
+        assertTrue(this.serverPeak.get() <= maxConcurrency, "Downloads should never exceed the max concurrency");
+        assertEquals(0, cache.getPendingDownloads());
+
+        assumeTrue(this.engine.virtual(), "Virtual threads are unavailable in this runtime");
+        assertTrue(this.serverPeak.get() > PLATFORM_CONCURRENCY,
+                "Virtual threads should keep more downloads in flight than platform threads: " + this.serverPeak.get());
+    }
+}
@@ -0,0 +1,163 @@
+package org.teacon.slides.cache;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.utils.DateUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageCacheTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    @TempDir
+    Path dir;
+
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> conditionalRequests = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", exchange -> {
+            var path = exchange.getRequestURI().getPath();
+            this.requests.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+            // the directives of each response are named by the path
+            var headers = exchange.getResponseHeaders();
+            headers.set("ETag", ETAG);
+            headers.set("Content-Type", "image/png");
+            switch (path) {
+                case "/stale.png" -> headers.set("Cache-Control", "max-age=0");
+                case "/no-cache.png" -> headers.set("Cache-Control", "no-cache");
+                case "/must-revalidate.png" -> headers.set("Cache-Control", "max-age=0, must-revalidate");
+                case "/pragma.png" -> headers.set("Pragma", "no-cache");
+                case "/max-age.png" -> headers.set("Cache-Control", "max-age=3600");
+                case "/expires.png" -> headers.set("Expires", hoursFromNow(1));
+                case "/heuristic.png" -> headers.set("Last-Modified", hoursFromNow(-240));
+                case "/heuristic-stale.png" -> headers.set("Last-Modified", hoursFromNow(0));
+                default -> {
+                }
+            }
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                this.conditionalRequests.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                var body = path.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        this.server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        this.server.stop(0);
+    }
+
+    @Test
+    void staleResponseIsServedWhileRevalidating() throws Exception {
+        var cache = new ImageCache(this.dir);
+        assertEquals("/stale.png", this.load(cache, "/stale.png"));
+        assertEquals(1, this.requestCount("/stale.png"));
+
+        // served from disk at once, and revalidated in a background batch later
+        assertEquals("/stale.png", this.load(cache, "/stale.png"));
+        assertEquals(1, this.requestCount("/stale.png"));
+    }
+
+    @Test
+    void freshResponseIsServedWithoutRequest() throws Exception {
+        var cache = new ImageCache(this.dir);
+        assertEquals("/max-age.png", this.load(cache, "/max-age.png"));
+        assertEquals(1, this.requestCount("/max-age.png"));
+
+        // mapped from disk by the fast path, and counted as a load without its own conditional request
+        for (var i = 0; i < 3; ++i) {
+            assertEquals("/max-age.png", this.load(cache, "/max-age.png"));
+        }
+        assertEquals(1, this.requestCount("/max-age.png"));
+        assertEquals(3L, cache.getAvoidedRevalidations());
+        assertEquals(0L, cache.getBackgroundRevalidations());
+    }
+
+    @Test
+    void freshnessOfStoredResponsesIsHonored() throws Exception {
+        this.assertFreshness("/max-age.png", true);
+        this.assertFreshness("/expires.png", true);
+        // a tenth of the time since the last modification, which is capped to a day
+        this.assertFreshness("/heuristic.png", true);
+        this.assertFreshness("/heuristic-stale.png", false);
+    }
+
+    private void assertFreshness(String path, boolean fresh) throws Exception {
+        var cache = new ImageCache(this.dir.resolve(path.substring(1)));
+        assertEquals(path, this.load(cache, path));
+        assertEquals(path, this.load(cache, path));
+        // both fresh and stale responses are served from disk, only fresh ones are not revalidated
+        assertEquals(1, this.requestCount(path), path);
+        assertEquals(fresh ? 1L : 0L, cache.getAvoidedRevalidations(), path);
+    }
+
+    @Test
+    void noCacheResponseIsRevalidatedBeforeUse() throws Exception {
+        this.assertRevalidatedBeforeUse("/no-cache.png");
+    }
+
+    @Test
+    void mustRevalidateResponseIsRevalidatedBeforeUse() throws Exception {
+        this.assertRevalidatedBeforeUse("/must-revalidate.png");
+        assertEquals(1, this.conditionalRequests.get("/must-revalidate.png").get());
+    }
+
+    @Test
+    void pragmaNoCacheResponseIsRevalidatedBeforeUse() throws Exception {
+        this.assertRevalidatedBeforeUse("/pragma.png");
+    }
+
+    private void assertRevalidatedBeforeUse(String path) throws Exception {
+        var cache = new ImageCache(this.dir);
+        assertEquals(path, this.load(cache, path));
+        assertEquals(1, this.requestCount(path));
+
+        // the load waits for the request, instead of being served stale from disk, responses which the http
+        // client does not store at all are requested again as well
+        assertEquals(path, this.load(cache, path));
+        assertEquals(2, this.requestCount(path));
+        assertEquals(0L, cache.getAvoidedRevalidations());
+    }
+
+    private String load(ImageCache cache, String path) throws Exception {
+        var location = URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + path);
+        var data = cache.getResource(location, true, () -> 0.0).get(30, TimeUnit.SECONDS).data();
+        var bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String hoursFromNow(int hours) {
+        return DateUtils.formatDate(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(hours)));
+    }
+
+    private int requestCount(String path) {
+        return this.requests.getOrDefault(path, new AtomicInteger()).get();
+    }
+}
@@ -0,0 +1,100 @@
+package org.teacon.slides.cache;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void unknownRecordTypeStopsReplayAndCompactionRecovers() throws IOException {
+        this.assertRecovers(output -> output.writeByte(42));
+    }
+
+    @Test
+    void invalidStringLengthStopsReplayAndCompactionRecovers() throws IOException {
+        // a remove record with a negative string length
+        this.assertRecovers(output -> {
+            output.writeByte(2);
+            output.writeInt(-1);
+        });
+    }
+
+    @Test
+    void truncatedRecordStopsReplay() throws IOException {
+        this.assertRecovers(output -> {
+            output.writeByte(1);
+            output.writeInt(100);
+            output.write(new byte[10]);
+        });
+    }
+
+    private void assertRecovers(CorruptRecord corruptRecord) throws IOException {
+        var journal = this.newJournal();
+        journal.appendPut("a", pair("a"), 1L);
+        journal.compact(new HashMap<>(), new HashMap<>());
+        journal.appendPut("a", pair("a"), 1L);
+        journal.appendPut("b", pair("b"), 2L);
+        try (var output = new DataOutputStream(Files.newOutputStream(this.journalPath(), StandardOpenOption.APPEND))) {
+            corruptRecord.write(output);
+        }
+
+        // the records before the corrupt one are kept
+        var entries = new HashMap<String, Pair<Path, HttpCacheEntry>>();
+        var accessTimes = new HashMap<String, Long>();
+        journal = this.newJournal();
+        journal.load(entries, accessTimes);
+        assertEquals(Map.of("a", 1L, "b", 2L), accessTimes);
+
+        // the storage compacts after loading, so the following records are replayed on the next start
+        journal.compact(entries, accessTimes);
+        journal.appendPut("c", pair("c"), 3L);
+        journal.appendRemove("a");
+
+        entries.clear();
+        accessTimes.clear();
+        this.newJournal().load(entries, accessTimes);
+        assertEquals(Map.of("b", 2L, "c", 3L), accessTimes);
+        assertEquals(Path.of("c.png"), entries.get("c").getKey());
+    }
+
+    private StorageJournal newJournal() {
+        return new StorageJournal(this.dir.resolve("storage-keys.bin"), this.journalPath());
+    }
+
+    private Path journalPath() {
+        return this.dir.resolve("storage-keys.journal");
+    }
+
+    private static Pair<Path, HttpCacheEntry> pair(String name) {
+        var path = Path.of(name + ".png");
+        var date = new Date(0L);
+        var statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        var entry = new HttpCacheEntry(date, date, statusLine, new Header[0], new CacheResource(path));
+        return Pair.of(path, entry);
+    }
+
+    @FunctionalInterface
+    private interface CorruptRecord {
+        void write(DataOutputStream output) throws IOException;
+    }
+}
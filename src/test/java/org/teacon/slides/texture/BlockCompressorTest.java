@@ -0,0 +1,198 @@
+package org.teacon.slides.texture;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCompressorTest {
+
+    // half the step between interpolated colors of a block spanning the whole ramp, plus the inset
+    // and the quantization to 5:6:5 bits, and half the step between eight interpolated alphas
+    private static final int MAX_COLOR_ERROR = 36;
+    private static final int MAX_ALPHA_ERROR = 16;
+
+    @Test
+    void solidBlockIsEncodedWithEqualEndpoints() {
+        var pixels = fill(4, 4, (x, y) -> 0xFF3C8AD2);
+        var blocks = compress(pixels, 4, 4, false);
+        // both endpoints are the same, and all indices refer to the first one
+        assertEquals(blocks.getShort(0), blocks.getShort(2));
+        assertEquals(0, blocks.getInt(4));
+        var decoded = decode(blocks, 4, 4, false);
+        for (var i = 0; i < 16; ++i) {
+            assertColorWithin(pixels, decoded, i, 4, 0);
+        }
+    }
+
+    @Test
+    void opaqueGradientRoundTrips() {
+        for (var size : new int[][]{{4, 4}, {16, 8}, {1, 1}, {5, 3}, {7, 9}, {13, 2}}) {
+            int width = size[0], height = size[1];
+            var pixels = gradient(width, height, false);
+            var blocks = compress(pixels, width, height, false);
+            var decoded = decode(blocks, width, height, false);
+            for (var i = 0; i < width * height; ++i) {
+                assertColorWithin(pixels, decoded, i, MAX_COLOR_ERROR, 0);
+                assertEquals((byte) 0xFF, decoded.get(i * 4 + 3), "opaque pixels stay opaque");
+            }
+        }
+    }
+
+    @Test
+    void alphaGradientRoundTrips() {
+        for (var size : new int[][]{{4, 4}, {16, 8}, {1, 1}, {5, 3}, {7, 9}, {13, 2}}) {
+            int width = size[0], height = size[1];
+            var pixels = gradient(width, height, true);
+            var blocks = compress(pixels, width, height, true);
+            var decoded = decode(blocks, width, height, true);
+            for (var i = 0; i < width * height; ++i) {
+                assertColorWithin(pixels, decoded, i, MAX_COLOR_ERROR, MAX_ALPHA_ERROR);
+            }
+        }
+    }
+
+    @Test
+    void solidAlphaBlockIsExact() {
+        var pixels = fill(4, 4, (x, y) -> 0x80FF0000);
+        var blocks = compress(pixels, 4, 4, true);
+        assertEquals(blocks.get(0), blocks.get(1));
+        var decoded = decode(blocks, 4, 4, true);
+        for (var i = 0; i < 16; ++i) {
+            assertEquals(pixels.get(i * 4 + 3), decoded.get(i * 4 + 3));
+        }
+    }
+
+    private static ByteBuffer compress(ByteBuffer pixels, int width, int height, boolean alpha) {
+        var blocks = ByteBuffer.allocate(BlockCompressor.levelSize(alpha, width, height)).order(ByteOrder.LITTLE_ENDIAN);
+        BlockCompressor.compress(pixels, width, height, alpha, blocks);
+        assertFalse(blocks.hasRemaining(), "blocks should fill the level exactly");
+        return blocks.flip();
+    }
+
+    /**
+     * A software S3TC decoder, which follows the specification instead of the encoder, so that the
+     * three-color and six-alpha modes are also decoded.
+     */
+    static ByteBuffer decode(ByteBuffer level, int width, int height, boolean alpha) {
+        var blocks = level.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        var pixels = ByteBuffer.allocate(width * height * 4);
+        var p = 0;
+        for (var by = 0; by < height; by += 4) {
+            for (var bx = 0; bx < width; bx += 4) {
+                var alphas = new int[16];
+                if (alpha) {
+                    int a0 = blocks.get(p) & 0xFF, a1 = blocks.get(p + 1) & 0xFF;
+                    var palette = new int[8];
+                    palette[0] = a0;
+                    palette[1] = a1;
+                    if (a0 > a1) {
+                        for (var k = 2; k < 8; ++k) {
+                            palette[k] = ((8 - k) * a0 + (k - 1) * a1) / 7;
+                        }
+                    } else {
+                        for (var k = 2; k < 6; ++k) {
+                            palette[k] = ((6 - k) * a0 + (k - 1) * a1) / 5;
+                        }
+                        palette[7] = 255;
+                    }
+                    var indices = 0L;
+                    for (var i = 0; i < 6; ++i) {
+                        indices |= (blocks.get(p + 2 + i) & 0xFFL) << (i * 8);
+                    }
+                    for (var i = 0; i < 16; ++i) {
+                        alphas[i] = palette[(int) (indices >>> (i * 3)) & 7];
+                    }
+                    p += 8;
+                } else {
+                    Arrays.fill(alphas, 255);
+                }
+                int c0 = blocks.getShort(p) & 0xFFFF, c1 = blocks.getShort(p + 2) & 0xFFFF;
+                var indices = blocks.getInt(p + 4);
+                p += 8;
+                var palette = new int[16];
+                expand565(c0, palette, 0);
+                expand565(c1, palette, 4);
+                for (var c = 0; c < 3; ++c) {
+                    if (c0 > c1) {
+                        palette[8 + c] = (2 * palette[c] + palette[4 + c]) / 3;
+                        palette[12 + c] = (palette[c] + 2 * palette[4 + c]) / 3;
+                    } else {
+                        palette[8 + c] = (palette[c] + palette[4 + c]) / 2;
+                        palette[12 + c] = 0;
+                    }
+                }
+                palette[3] = palette[7] = palette[11] = 255;
+                palette[15] = c0 > c1 || alpha ? 255 : 0;
+                for (var i = 0; i < 16; ++i) {
+                    int x = bx + (i & 3), y = by + (i >> 2);
+                    if (x >= width || y >= height) {
+                        continue;
+                    }
+                    var k = (indices >>> (i * 2)) & 3;
+                    var o = (y * width + x) * 4;
+                    pixels.put(o, (byte) palette[k * 4]);
+                    pixels.put(o + 1, (byte) palette[k * 4 + 1]);
+                    pixels.put(o + 2, (byte) palette[k * 4 + 2]);
+                    pixels.put(o + 3, (byte) (alpha ? alphas[i] : palette[k * 4 + 3]));
+                }
+            }
+        }
+        assertEquals(blocks.limit(), p, "all blocks should be decoded");
+        return pixels;
+    }
+
+    private static void expand565(int c, int[] out, int offset) {
+        int r = (c >> 11) & 31, g = (c >> 5) & 63, b = c & 31;
+        out[offset] = (r << 3) | (r >> 2);
+        out[offset + 1] = (g << 2) | (g >> 4);
+        out[offset + 2] = (b << 3) | (b >> 2);
+    }
+
+    private static void assertColorWithin(ByteBuffer expected, ByteBuffer actual, int i, int colorError, int alphaError) {
+        for (var c = 0; c < 4; ++c) {
+            var error = Math.abs((expected.get(i * 4 + c) & 0xFF) - (actual.get(i * 4 + c) & 0xFF));
+            assertTrue(error <= (c == 3 ? alphaError : colorError),
+                    "channel " + c + " of pixel " + i + " is off by " + error);
+        }
+    }
+
+    /**
+     * A smooth diagonal ramp between two colors, like the backgrounds of most slides.
+     */
+    static ByteBuffer gradient(int width, int height, boolean alpha) {
+        var steps = Math.max(1, width + height - 2);
+        return fill(width, height, (x, y) -> {
+            var t = x + y;
+            var r = (0x20 * (steps - t) + 0xE0 * t) / steps;
+            var g = (0xC0 * (steps - t) + 0x40 * t) / steps;
+            var b = (0x80 * (steps - t) + 0xFF * t) / steps;
+            var a = alpha ? (0xFF * (steps - t) + 0x30 * t) / steps : 0xFF;
+            return a << 24 | r << 16 | g << 8 | b;
+        });
+    }
+
+    /**
+     * @param argb the packed color of each pixel
+     * @return RGBA pixels, tightly packed
+     */
+    static ByteBuffer fill(int width, int height, PixelFunction argb) {
+        var pixels = ByteBuffer.allocateDirect(width * height * 4);
+        for (var y = 0; y < height; ++y) {
+            for (var x = 0; x < width; ++x) {
+                var pixel = argb.apply(x, y);
+                pixels.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel).put((byte) (pixel >>> 24));
+            }
+        }
+        return pixels.flip();
+    }
+
+    @FunctionalInterface
+    interface PixelFunction {
+
+        int apply(int x, int y);
+    }
+}
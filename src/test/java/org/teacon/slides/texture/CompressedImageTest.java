@@ -0,0 +1,91 @@
+package org.teacon.slides.texture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressedImageTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writtenImageIsReadBack() {
+        for (var alpha : new boolean[]{false, true}) {
+            var image = CompressedImage.compress(BlockCompressorTest.gradient(13, 6, alpha), 13, 6, alpha);
+            var path = this.dir.resolve("image-" + alpha + "." + CompressedImage.SUFFIX);
+            image.write(path);
+
+            var read = CompressedImage.read(path);
+            assertNotNull(read);
+            assertEquals(alpha, read.hasAlpha());
+            assertEquals(13, read.getWidth());
+            assertEquals(6, read.getHeight());
+            // 13x6, 6x3, 3x1 and 1x1
+            assertEquals(4, read.getLevels());
+            assertEquals(image.getSize(), read.getSize());
+            for (var level = 0; level < read.getLevels(); ++level) {
+                assertEquals(image.getLevel(level), read.getLevel(level), "level " + level);
+            }
+        }
+    }
+
+    @Test
+    void lastLevelIsAverageOfImage() {
+        var image = CompressedImage.compress(BlockCompressorTest.gradient(8, 8, true), 8, 8, true);
+        assertEquals(4, image.getLevels());
+        // a single pixel, which is the middle of the symmetric ramp from 0x20 to 0xE0 in red
+        var last = BlockCompressorTest.decode(image.getLevel(3), 1, 1, true);
+        assertEquals(0x80, last.get(0) & 0xFF, 8);
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        var path = this.write();
+        var bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+        assertNull(CompressedImage.read(path));
+        // a header alone is not an image either
+        Files.write(path, Arrays.copyOf(bytes, 24));
+        assertNull(CompressedImage.read(path));
+        Files.write(path, Arrays.copyOf(bytes, 10));
+        assertNull(CompressedImage.read(path));
+    }
+
+    @Test
+    void fileOfOtherVersionIsRejected() throws IOException {
+        var path = this.write();
+        var bytes = Files.readAllBytes(path);
+        ByteBuffer.wrap(bytes).putInt(4, 2);
+        Files.write(path, bytes);
+        assertNull(CompressedImage.read(path));
+    }
+
+    @Test
+    void fileOfOtherFormatIsRejected() throws IOException {
+        var path = this.write();
+        var bytes = Files.readAllBytes(path);
+        ByteBuffer.wrap(bytes).putInt(0, 0x89504E47); // PNG
+        Files.write(path, bytes);
+        assertNull(CompressedImage.read(path));
+    }
+
+    @Test
+    void missingFileIsNotAnImage() {
+        assertNull(CompressedImage.read(this.dir.resolve("missing." + CompressedImage.SUFFIX)));
+    }
+
+    private Path write() {
+        var path = this.dir.resolve("image." + CompressedImage.SUFFIX);
+        CompressedImage.compress(BlockCompressorTest.gradient(9, 5, false), 9, 5, false).write(path);
+        assertNotNull(CompressedImage.read(path));
+        return path;
+    }
+}
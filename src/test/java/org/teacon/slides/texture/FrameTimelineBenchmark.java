@@ -0,0 +1,88 @@
+package org.teacon.slides.texture;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Measures the frame lookup of animated images, in playback order like render calls, and in random
+ * order which mostly misses the last index, against the linear scan it replaced.
+ * <p>
+ * Excluded from the test task, run it with {@code gradlew benchmark}.
+ */
+@Tag("benchmark")
+class FrameTimelineBenchmark {
+
+    private static final int LOOKUPS = 1 << 20;
+    private static final int LINEAR_LOOKUPS = 1 << 12;
+    private static final int ROUNDS = 20;
+
+    @Test
+    void lookup() {
+        for (var frames : new int[]{10, 1000, 10000}) {
+            var random = new Random(frames);
+            var delays = new int[frames];
+            for (var i = 0; i < frames; ++i) {
+                delays[i] = 20 + random.nextInt(80);
+            }
+            var timeline = new FrameTimeline(delays);
+            var duration = timeline.getDuration();
+
+            // a step of a sixtieth of a second, like a render call per frame
+            var playback = new long[LOOKUPS];
+            var shuffled = new long[LOOKUPS];
+            for (var i = 0; i < LOOKUPS; ++i) {
+                playback[i] = i * 16L % duration;
+                shuffled[i] = random.nextLong(duration);
+            }
+            report("playback", frames, measure(timeline::frameAt, playback));
+            report("random", frames, measure(timeline::frameAt, shuffled));
+            var linearTimes = Arrays.copyOf(shuffled, LINEAR_LOOKUPS);
+            report("linear", frames, measure(time -> linearScan(delays, time), linearTimes));
+        }
+    }
+
+    /**
+     * Runs all the lookups repeatedly, and takes the fastest round after the warmup ones.
+     *
+     * @return nanoseconds of each lookup
+     */
+    private static double measure(LongToIntFunction frameAt, long[] times) {
+        var best = Long.MAX_VALUE;
+        var sink = 0;
+        for (var round = 0; round < ROUNDS; ++round) {
+            var start = System.nanoTime();
+            for (var time : times) {
+                sink += frameAt.applyAsInt(time);
+            }
+            var elapsed = System.nanoTime() - start;
+            if (round >= ROUNDS / 2) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (sink == 42) {
+            System.out.println(); // keeps the lookups from being eliminated
+        }
+        return (double) best / times.length;
+    }
+
+    private static int linearScan(int[] delays, long time) {
+        var start = 0L;
+        for (var i = 0; i < delays.length; ++i) {
+            if (start >= time) {
+                return i;
+            }
+            start += delays[i];
+        }
+        return 0;
+    }
+
+    private static void report(String name, int frames, double nanos) {
+        System.out.printf("%-10s %6d frames %8.2f ns/lookup %10.1f M lookups/s%n",
+                name, frames, nanos, TimeUnit.SECONDS.toNanos(1) / nanos / 1e6);
+    }
+}
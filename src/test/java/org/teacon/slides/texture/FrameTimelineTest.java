@@ -0,0 +1,55 @@
+package org.teacon.slides.texture;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTimelineTest {
+
+    @Test
+    void frameAtMatchesLinearScan() {
+        var random = new Random(1L);
+        for (var round = 0; round < 200; ++round) {
+            // about a third of frames are zero-length, including the first and the last ones
+            var delays = new int[1 + random.nextInt(50)];
+            for (var i = 0; i < delays.length; ++i) {
+                delays[i] = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(100);
+            }
+            var timeline = new FrameTimeline(delays);
+            var duration = timeline.getDuration();
+
+            // in playback order, which mostly hits the last index, up to and including the duration
+            for (var time = 0L; time <= duration; ++time) {
+                assertEquals(linearScan(delays, time), timeline.frameAt(time), "time " + time);
+            }
+            // in random order, which mostly misses it
+            for (var i = 0; i < 100; ++i) {
+                var time = (long) random.nextInt((int) duration + 2);
+                assertEquals(linearScan(delays, time), timeline.frameAt(time), "time " + time);
+            }
+        }
+    }
+
+    @Test
+    void zeroDurationTimelineShowsFirstFrame() {
+        var timeline = new FrameTimeline(new int[]{0, 0, 0});
+        assertEquals(0L, timeline.getDuration());
+        assertEquals(0, timeline.frameAt(0L));
+    }
+
+    /**
+     * The lookup before the binary search, the first frame whose start time is not before the time.
+     */
+    private static int linearScan(int[] delays, long time) {
+        var start = 0L;
+        for (var i = 0; i < delays.length; ++i) {
+            if (start >= time) {
+                return i;
+            }
+            start += delays[i];
+        }
+        return 0;
+    }
+}